@@ -3,6 +3,14 @@ local function onKeyPressed(key)
         ZBLuaPerfMon.toggleOSD()
     elseif getCore():isKey("Freeze LuaPerfMon OSD", key) then
         ZBLuaPerfMon.toggleOSDFreeze()
+    elseif getCore():isKey("Dump LuaPerfMon Call Paths", key) then
+        ZBLuaPerfMon.dumpCallPaths()
+    elseif getCore():isKey("Cycle LuaPerfMon Group By", key) then
+        ZBLuaPerfMon.cycleGroupBy()
+    elseif getCore():isKey("Toggle LuaPerfMon Trace Recording", key) then
+        ZBLuaPerfMon.toggleTraceRecording()
+    elseif getCore():isKey("Export LuaPerfMon Chrome Trace", key) then
+        ZBLuaPerfMon.exportChromeTrace()
     end
 end
 
@@ -10,14 +10,40 @@ local config = {
     osdUpdateIntervalMS      = nil,
     osdTopN                  = nil,
     osdMinTimeMS             = nil,
+    osdShowPercentiles       = nil,
+    osdShowFrameStats        = nil,
+    osdShowSparklines        = nil,
+    osdSparklineSeconds      = nil,
     excludeGameEntries       = nil,
+    rankBySelfTime           = nil,
+    groupBy                  = nil,
+    cycleGroupByKey          = nil,
     logEnabled               = nil,
     logWhenOSDOff            = nil,
     logIntervalSeconds       = nil,
+    logToConsole             = nil,
+    logFileFormat            = nil,
+    logFileMaxMB             = nil,
+    logFileMaxMinutes        = nil,
     minTimeMicroseconds      = nil,
+    samplingRate             = nil,
+    asyncRecording           = nil,
+    overheadCompensation     = nil,
+    governorEnabled          = nil,
+    overheadBudgetPercent    = nil,
     trackInternalPerformance = nil,
+    callPathsEnabled         = nil,
     toggleOSDKey             = nil,
     freezeOSDKey             = nil,
+    dumpCallPathsKey         = nil,
+    traceSizeMB              = nil,
+    toggleTraceKey           = nil,
+    chromeExportSeconds      = nil,
+    exportChromeKey          = nil,
+    hitchCaptureEnabled      = nil,
+    hitchThresholdMS         = nil,
+    hitchCooldownSeconds     = nil,
+    hitchFreezeOSD           = nil,
 }
 
 local options = PZAPI.ModOptions:create(MOD_ID, MOD_NAME)
@@ -46,7 +72,7 @@ config.osdWindowMS = options:addSlider(
     "osdWindowMS", 
     "Time Window (ms)", 
      100, 
-   30000, 
+  300000, 
      100, 
     1000, 
     "Time window in milliseconds for the OSD statistics (how far back to look)"
@@ -79,7 +105,19 @@ config.osdMinTimeMS = options:addTextEntry(
     "Don't show entries with total time less than this value (i.e. 0.1 is a 1/10000 of a second)"
 )
 
+config.osdShowPercentiles = options:addTickBox("osdShowPercentiles", "Show Percentiles", false, "Show p50/p95/p99 call durations (ms) for each entry in the OSD")
+config.osdShowFrameStats  = options:addTickBox("osdShowFrameStats", "Show Lua Time per Frame", true, "Show average and worst Lua ms per frame in the OSD window, with the worst frame's call count and top mod")
+config.osdShowSparklines  = options:addTickBox("osdShowSparklines", "Show Sparklines", false, "Show a small graph of each entry's recent time next to it in the OSD, to spot periodic spikes")
+config.osdSparklineSeconds = options:addSlider("osdSparklineSeconds", "Sparkline History (s)", 2, 120, 1, 30, "How many seconds of history each sparkline covers")
+
 config.excludeGameEntries = options:addTickBox("excludeGameEntries", "Exclude GAME Entries", false, "Don't track or display entries from the base game (GAME prefix)")
+config.rankBySelfTime     = options:addTickBox("rankBySelfTime", "Rank by Self Time", false, "Rank the OSD and log by self time (excluding nested Lua calls) instead of total time, so event dispatchers don't hide the handlers they call")
+config.groupBy            = options:addComboBox("groupBy", "Group By", "Show one row per function, per mod, per source prefix (GAME, LMOD, ...), or per Lua event (OnTick, ...) in the OSD and log; mods and prefixes are charged self time")
+config.groupBy:addItem("Function", true)
+config.groupBy:addItem("Mod", false)
+config.groupBy:addItem("Prefix", false)
+config.groupBy:addItem("Event", false)
+config.cycleGroupByKey    = options:addKeyBind("cycleGroupByKey", "Cycle Group By Hotkey", Keyboard.KEY_NONE, "Hotkey to cycle the OSD and log through functions, mods, prefixes and Lua events")
 
 options:addSeparator()
 
@@ -88,9 +126,45 @@ options:addTitle("Log")
 
 config.logEnabled               = options:addTickBox("logEnabled", "Enable Logging", false, "Enable or disable console logging of performance statistics")
 config.logWhenOSDOff            = options:addTickBox("logWhenOSDOff", "Log When OSD Off", false, "Continue writing logs even when OSD is disabled (default: off)")
-config.logIntervalSeconds       = options:addSlider( "logIntervalSeconds", "Log Interval (seconds)", 1, 60, 1, 5, "How often to log performance statistics")
+config.logIntervalSeconds       = options:addSlider( "logIntervalSeconds", "Log Interval (seconds)", 1, 300, 1, 5, "How often to log performance statistics")
+config.logToConsole             = options:addTickBox("logToConsole", "Log to Console", true, "Print the statistics table to the console (console.txt)")
+config.logFileFormat            = options:addComboBox("logFileFormat", "Stats File Format", "Also append each logged table to ZBLuaPerfMon_stats.csv / .jsonl in the Zomboid cache dir, for tooling")
+config.logFileFormat:addItem("Off", true)
+config.logFileFormat:addItem("CSV", false)
+config.logFileFormat:addItem("JSON Lines", false)
+config.logFileMaxMB             = options:addSlider( "logFileMaxMB", "Stats File Max Size (MB)", 1, 500, 1, 10, "Rotate the stats file when it grows past this size")
+config.logFileMaxMinutes        = options:addSlider( "logFileMaxMinutes", "Stats File Max Age (minutes)", 5, 1440, 5, 60, "Rotate the stats file after this long")
+config.samplingRate             = options:addSlider( "samplingRate", "Sampling Rate (1 in N)", 1, 64, 1, 1, "Time only 1 in N top-level Lua calls, together with everything they call, and scale counts and totals back up. Cuts monitoring overhead on heavy modpacks; 1 = record every call")
+config.asyncRecording           = options:addTickBox("asyncRecording", "Async Recording", true, "Queue samples into per-thread ring buffers and aggregate them on a background thread, so the game thread only pays a few stores per call")
+config.overheadCompensation     = options:addTickBox("overheadCompensation", "Compensate Hook Overhead", true, "Subtract the monitor's own per-call cost (measured at startup) from recorded times, so tiny functions called thousands of times per frame aren't inflated")
+config.governorEnabled          = options:addTickBox("governorEnabled", "Limit Monitor Overhead", true, "Automatically sample calls, refresh the OSD less often and (with async recording off) raise the minimum recorded time while the monitor costs more than the budget below; relaxes again when load drops")
+config.overheadBudgetPercent    = options:addSlider("overheadBudgetPercent", "Overhead Budget (% of frame)", 0.5, 10, 0.5, 1, "Share of frame time the monitor itself may use before it starts cutting back")
 config.trackInternalPerformance = options:addTickBox("trackInternalPerformance", "Track LuaPerfMon Performance", false, "Track performance of the monitoring system itself")
 
+options:addSeparator()
+
+-- Call Path (flame graph) Settings
+options:addTitle("Call Paths")
+
+config.callPathsEnabled = options:addTickBox("callPathsEnabled", "Record Call Paths", false, "Aggregate nested Lua call paths so they can be dumped as a collapsed-stack file for flame graph tools")
+config.dumpCallPathsKey = options:addKeyBind("dumpCallPathsKey", "Dump Call Paths Hotkey", Keyboard.KEY_NONE, "Hotkey to write the recorded call paths to a .folded file in the Zomboid cache dir")
+
+-- Binary Trace Settings
+options:addTitle("Trace Recording")
+
+config.traceSizeMB    = options:addSlider("traceSizeMB", "Trace File Size (MB)", 16, 1024, 16, 256, "Size of the memory-mapped trace ring file; when full, the oldest records are overwritten (40 bytes per call)")
+config.toggleTraceKey = options:addKeyBind("toggleTraceKey", "Toggle Trace Recording Hotkey", Keyboard.KEY_NONE, "Hotkey to start/stop recording every timed Lua call to a binary trace file in the Zomboid cache dir")
+config.chromeExportSeconds = options:addSlider("chromeExportSeconds", "Chrome Export Length (s)", 1, 120, 1, 10, "How many seconds of the trace (ending at its latest record) the Chrome export covers")
+config.exportChromeKey     = options:addKeyBind("exportChromeKey", "Export Chrome Trace Hotkey", Keyboard.KEY_NONE, "Hotkey to write the recent part of the trace as Chrome trace-event JSON (chrome://tracing, ui.perfetto.dev) next to the trace file")
+
+-- Hitch Capture Settings
+options:addTitle("Hitch Capture")
+
+config.hitchCaptureEnabled  = options:addTickBox("hitchCaptureEnabled", "Capture Hitches", false, "Keep the most recent Lua calls in memory and dump them, in order with durations, to a file in the Zomboid cache dir whenever a frame's Lua time exceeds the threshold")
+config.hitchThresholdMS     = options:addSlider("hitchThresholdMS", "Hitch Threshold (ms)", 5, 1000, 5, 50, "Lua time within a single frame that triggers a capture")
+config.hitchCooldownSeconds = options:addSlider("hitchCooldownSeconds", "Hitch Cooldown (s)", 0, 300, 5, 10, "Minimum time between two captures")
+config.hitchFreezeOSD       = options:addTickBox("hitchFreezeOSD", "Freeze OSD on Hitch", false, "Freeze the OSD when a hitch is captured, so the aggregates around it stay on screen")
+
 
 -- Override the apply function to update Java values
 options.apply = function(self)
@@ -128,9 +202,34 @@ options.apply = function(self)
             ZBLuaPerfMon.setOSDMinTimeMS(minTimeValue)
         end
     end
+    if config.osdShowPercentiles then
+        ZBLuaPerfMon.setOSDShowPercentiles(config.osdShowPercentiles:getValue())
+    end
+    if config.osdShowFrameStats then
+        ZBLuaPerfMon.setOSDShowFrameStats(config.osdShowFrameStats:getValue())
+    end
+    if config.osdShowSparklines then
+        ZBLuaPerfMon.setOSDShowSparklines(config.osdShowSparklines:getValue())
+    end
+    if config.osdSparklineSeconds then
+        ZBLuaPerfMon.setOSDSparklineSeconds(config.osdSparklineSeconds:getValue())
+    end
     if config.excludeGameEntries then
         ZBLuaPerfMon.setExcludeGameEntries(config.excludeGameEntries:getValue())
     end
+    if config.rankBySelfTime then
+        ZBLuaPerfMon.setRankBySelfTime(config.rankBySelfTime:getValue())
+    end
+    if config.groupBy then
+        local modes = { "FUNCTION", "MOD", "PREFIX", "EVENT" }
+        ZBLuaPerfMon.setGroupBy(modes[config.groupBy:getValue()] or "FUNCTION")
+    end
+    if config.cycleGroupByKey then
+        local keyCode = config.cycleGroupByKey:getValue()
+        if keyCode then
+            getCore():addKeyBinding("Cycle LuaPerfMon Group By", tonumber(keyCode) or 0, 0, false, false, false)
+        end
+    end
     
     -- Apply logging settings
     if config.logEnabled then
@@ -142,12 +241,43 @@ options.apply = function(self)
     if config.logIntervalSeconds then
         ZBLuaPerfMon.setLogIntervalSeconds(config.logIntervalSeconds:getValue())
     end
+    if config.logToConsole then
+        ZBLuaPerfMon.setLogToConsole(config.logToConsole:getValue())
+    end
+    if config.logFileFormat then
+        local formats = { "off", "csv", "jsonl" }
+        ZBLuaPerfMon.setLogFileFormat(formats[config.logFileFormat:getValue()] or "off")
+    end
+    if config.logFileMaxMB then
+        ZBLuaPerfMon.setLogFileMaxMB(config.logFileMaxMB:getValue())
+    end
+    if config.logFileMaxMinutes then
+        ZBLuaPerfMon.setLogFileMaxMinutes(config.logFileMaxMinutes:getValue())
+    end
     if config.minTimeMicroseconds then
         ZBLuaPerfMon.setMinTimeMicroseconds(config.minTimeMicroseconds:getValue())
     end
+    if config.samplingRate then
+        ZBLuaPerfMon.setSamplingRate(config.samplingRate:getValue())
+    end
+    if config.asyncRecording then
+        ZBLuaPerfMon.setAsyncRecording(config.asyncRecording:getValue())
+    end
+    if config.overheadCompensation then
+        ZBLuaPerfMon.setOverheadCompensation(config.overheadCompensation:getValue())
+    end
+    if config.governorEnabled then
+        ZBLuaPerfMon.setGovernorEnabled(config.governorEnabled:getValue())
+    end
+    if config.overheadBudgetPercent then
+        ZBLuaPerfMon.setOverheadBudgetPercent(config.overheadBudgetPercent:getValue())
+    end
     if config.trackInternalPerformance then
         ZBLuaPerfMon.setTrackInternalPerformance(config.trackInternalPerformance:getValue())
     end
+    if config.callPathsEnabled then
+        ZBLuaPerfMon.setCallPathsEnabled(config.callPathsEnabled:getValue())
+    end
     
     -- Apply keybindings
     if config.toggleOSDKey then
@@ -164,6 +294,42 @@ options.apply = function(self)
             getCore():addKeyBinding("Freeze LuaPerfMon OSD", tonumber(keyCode) or 0, 0, false, false, false)
         end
     end
+    if config.dumpCallPathsKey then
+        local keyCode = config.dumpCallPathsKey:getValue()
+        if keyCode then
+            getCore():addKeyBinding("Dump LuaPerfMon Call Paths", tonumber(keyCode) or 0, 0, false, false, false)
+        end
+    end
+    if config.traceSizeMB then
+        ZBLuaPerfMon.setTraceSizeMB(config.traceSizeMB:getValue())
+    end
+    if config.toggleTraceKey then
+        local keyCode = config.toggleTraceKey:getValue()
+        if keyCode then
+            getCore():addKeyBinding("Toggle LuaPerfMon Trace Recording", tonumber(keyCode) or 0, 0, false, false, false)
+        end
+    end
+    if config.chromeExportSeconds then
+        ZBLuaPerfMon.setChromeExportSeconds(config.chromeExportSeconds:getValue())
+    end
+    if config.exportChromeKey then
+        local keyCode = config.exportChromeKey:getValue()
+        if keyCode then
+            getCore():addKeyBinding("Export LuaPerfMon Chrome Trace", tonumber(keyCode) or 0, 0, false, false, false)
+        end
+    end
+    if config.hitchCaptureEnabled then
+        ZBLuaPerfMon.setHitchCaptureEnabled(config.hitchCaptureEnabled:getValue())
+    end
+    if config.hitchThresholdMS then
+        ZBLuaPerfMon.setHitchThresholdMS(config.hitchThresholdMS:getValue())
+    end
+    if config.hitchCooldownSeconds then
+        ZBLuaPerfMon.setHitchCooldownSeconds(config.hitchCooldownSeconds:getValue())
+    end
+    if config.hitchFreezeOSD then
+        ZBLuaPerfMon.setHitchFreezeOSD(config.hitchFreezeOSD:getValue())
+    end
 end
 
 -- Apply settings when entering main menu (after loading saved options)
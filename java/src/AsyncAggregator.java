@@ -0,0 +1,82 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+// Background thread that drains every Lua thread's SampleRing into TimingStats
+// With ZBLuaPerfMon.asyncRecording on, the pcall exit hooks only append to their thread's
+// ring; key lookups, stats updates and periodic logging all happen here instead.
+// A ring is dropped after its final drain once its thread has finished, so short-lived
+// threads don't pin their 8192-slot rings forever.
+// Each pass also advances EpochClock, so the clock keeps moving without UI frames (dedicated
+// servers) and in sync mode, where the thread runs without any rings. About once a second it
+// also lets ThreadState reuse the indices of finished threads.
+public class AsyncAggregator {
+    private static final long IDLE_PARK_NS = 5_000_000L; // 5ms between polls when nothing was pending
+    private static final long RECYCLE_INTERVAL_NS = 1_000_000_000L; // Between ThreadState.recycleIndices() calls
+
+    private static final CopyOnWriteArrayList<SampleRing> rings = new CopyOnWriteArrayList<>();
+    private static volatile Thread thread = null;
+    private static volatile long retiredDropped = 0; // Drops of removed rings; written by the aggregator thread only
+
+    static void register(SampleRing ring) {
+        rings.add(ring);
+        start();
+    }
+
+    static void start() {
+        if (thread != null) {
+            return;
+        }
+        synchronized (AsyncAggregator.class) {
+            if (thread == null) {
+                Thread t = new Thread(AsyncAggregator::run, "ZBLuaPerfMon-aggregator");
+                t.setDaemon(true);
+                t.start();
+                thread = t;
+            }
+        }
+    }
+
+    private static void run() {
+        long lastRecycleNs = System.nanoTime();
+        while (true) {
+            int drained = 0;
+            EpochClock.advance();
+            try {
+                for (SampleRing ring : rings) {
+                    // Checked before draining, so everything the owner offered is drained first
+                    boolean ownerAlive = ring.isOwnerAlive();
+                    drained += ring.drain();
+                    if (!ownerAlive) {
+                        retiredDropped = retiredDropped + ring.getDropped();
+                        rings.remove(ring);
+                        ring.retire();
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - lastRecycleNs >= RECYCLE_INTERVAL_NS) {
+                    lastRecycleNs = now;
+                    ThreadState.recycleIndices();
+                }
+                if (drained > 0) {
+                    PerformanceMonitor.checkAndLogStatistics();
+                }
+            } catch (Throwable e) {
+                System.err.println("[ZBLuaPerfMon] Aggregator error: " + e);
+            }
+            if (drained == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NS);
+            }
+        }
+    }
+
+    // Total samples dropped because a ring was full
+    public static long getDroppedSamples() {
+        long total = retiredDropped;
+        for (SampleRing ring : rings) {
+            total += ring.getDropped();
+        }
+        return total;
+    }
+}
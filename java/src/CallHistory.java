@@ -0,0 +1,36 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Preallocated ring of the most recent hooked calls on one thread, copied by HitchCapture
+// Written by the owning thread only, while ZBLuaPerfMon.hitchCaptureEnabled is on
+public class CallHistory {
+    public static final int CAPACITY = 4096; // Power of two
+    private static final int MASK = CAPACITY - 1;
+
+    final Object[] funcs = new Object[CAPACITY];
+    final long[] starts = new long[CAPACITY];
+    final long[] durations = new long[CAPACITY];
+    final long[] selfTimes = new long[CAPACITY];
+    final int[] depths = new int[CAPACITY];
+    final AtomicLong written = new AtomicLong(); // Entries ever added; single writer, ordered stores
+    final int thread;
+
+    CallHistory(int thread) {
+        this.thread = thread;
+        HitchCapture.histories.removeIf(ref -> ref.get() == null);
+        HitchCapture.histories.add(new WeakReference<>(this));
+    }
+
+    void add(Object fun, long startTime, long duration, long selfTime, int depth) {
+        long n = written.get();
+        int i = (int) (n & MASK);
+        funcs[i] = fun;
+        starts[i] = startTime;
+        durations[i] = duration;
+        selfTimes[i] = selfTime;
+        depths[i] = depth;
+        written.lazySet(n + 1);
+    }
+}
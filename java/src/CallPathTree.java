@@ -0,0 +1,163 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import zombie.ZomboidFileSystem;
+
+// Aggregated call-path tree for one thread, keyed by the sequence of FunctionRegistry ids from the
+// outermost hooked pcall down to the current frame. Each node accumulates the self time
+// of calls made along that exact path, which is what the collapsed-stack format expects.
+// Bounded so it can stay on for long sessions: paths deeper than MAX_DEPTH are charged to
+// their deepest allowed ancestor, and once MAX_NODES is reached new paths are charged to
+// their parent node.
+public class CallPathTree {
+    public static final int MAX_DEPTH = 64;
+    public static final int MAX_NODES = 65536;
+    public static final int ROOT = 0;
+    public static final int NONE = -1; // Frame opened while path recording was off
+
+    private static final int TABLE_SIZE = MAX_NODES * 2; // Open-addressing (parent, key) -> node, power of two
+    private static final String FILE_PREFIX = "ZBLuaPerfMon_callpaths_";
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+
+    // Trees of live threads, so exports can merge every thread's paths; held weakly so a
+    // finished thread's tree (~2.5MB) goes away with its ThreadState
+    private static final CopyOnWriteArrayList<WeakReference<CallPathTree>> allTrees = new CopyOnWriteArrayList<>();
+    // Bumped by clearAll(); each owner thread resets its own tree when it notices
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private final int[] parents = new int[MAX_NODES];
+    private final int[] keys = new int[MAX_NODES];
+    private final long[] selfNs = new long[MAX_NODES];
+    private final long[] tableEntries = new long[TABLE_SIZE]; // (parent << 32 | key) + 1, 0 = empty
+    private final int[] tableNodes = new int[TABLE_SIZE];
+    private volatile int size = 1; // Written after a node is filled in, so readers only see complete nodes
+    private volatile int treeGeneration = generation.get();
+
+    CallPathTree() {
+        allTrees.removeIf(ref -> ref.get() == null);
+        allTrees.add(new WeakReference<>(this));
+    }
+
+    // Apply a pending clearAll(); returns true if the tree was reset, in which case node ids
+    // the owner still holds for open frames are stale and must be dropped
+    public boolean resetIfCleared() {
+        int current = generation.get();
+        if (treeGeneration == current) {
+            return false;
+        }
+        size = 1;
+        java.util.Arrays.fill(tableEntries, 0);
+        treeGeneration = current;
+        return true;
+    }
+
+    // Node for `key` called from `parent`, creating it if there's room
+    public int child(int parent, int key) {
+        long entry = (((long) parent << 32) | (key & 0xffffffffL)) + 1;
+        int slot = (int) (mix(entry) & (TABLE_SIZE - 1));
+        while (true) {
+            long existing = tableEntries[slot];
+            if (existing == entry) {
+                return tableNodes[slot];
+            }
+            if (existing == 0) {
+                break;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+
+        int node = size;
+        if (node >= MAX_NODES) {
+            return parent;
+        }
+        parents[node] = parent;
+        keys[node] = key;
+        selfNs[node] = 0;
+        tableEntries[slot] = entry;
+        tableNodes[slot] = node;
+        size = node + 1;
+        return node;
+    }
+
+    public void addSelfTime(int node, long nanos) {
+        if (node > ROOT && node < size) {
+            selfNs[node] += nanos;
+        }
+    }
+
+    private static long mix(long x) {
+        x *= 0x9E3779B97F4A7C15L;
+        return x ^ (x >>> 29);
+    }
+
+    // Drop all recorded paths (applied lazily by each owner thread)
+    public static void clearAll() {
+        generation.incrementAndGet();
+    }
+
+    // Write all threads' paths in collapsed-stack format ("a;b;c <self microseconds>") to a new
+    // file in the cache dir, ready for flamegraph.pl / speedscope. Returns the file path, or null
+    public static String dumpCollapsed() {
+        if (ZomboidFileSystem.instance == null) {
+            return null;
+        }
+        Map<String, Long> merged = new HashMap<>();
+        Map<Integer, String> names = new HashMap<>();
+        int currentGeneration = generation.get();
+        for (WeakReference<CallPathTree> ref : allTrees) {
+            CallPathTree tree = ref.get();
+            if (tree == null || tree.treeGeneration != currentGeneration) {
+                continue; // Cleared, but its thread hasn't recorded anything since
+            }
+            tree.collect(merged, names);
+        }
+
+        String cacheDir = ZomboidFileSystem.instance.getCacheDir();
+        File file = new File(cacheDir, FILE_PREFIX + LocalDateTime.now().format(FILE_TIMESTAMP) + ".folded");
+        file.getParentFile().mkdirs();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
+            for (Map.Entry<String, Long> entry : merged.entrySet()) {
+                long micros = entry.getValue() / 1000;
+                if (micros > 0) {
+                    writer.write(entry.getKey());
+                    writer.write(' ');
+                    writer.write(Long.toString(micros));
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[ZBLuaPerfMon] Failed to write call paths: " + e.getMessage());
+            return null;
+        }
+        return file.getAbsolutePath();
+    }
+
+    private void collect(Map<String, Long> merged, Map<Integer, String> names) {
+        int count = size;
+        String[] paths = new String[count]; // Built parent-first, since parents always have lower indices
+        for (int node = 1; node < count; node++) {
+            int parent = parents[node];
+            String frame = names.computeIfAbsent(keys[node], CallPathTree::frameName);
+            paths[node] = parent == ROOT || paths[parent] == null ? frame : paths[parent] + ";" + frame;
+            long nanos = selfNs[node];
+            if (nanos > 0) {
+                merged.merge(paths[node], nanos, Long::sum);
+            }
+        }
+    }
+
+    // ';' separates frames in the collapsed format, so it can't appear inside one
+    private static String frameName(int id) {
+        return PerformanceMonitor.getDisplayName(id).replace(';', ',');
+    }
+}
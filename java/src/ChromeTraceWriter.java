@@ -0,0 +1,168 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+// Converts a binary trace (see TraceFormat) into Chrome trace-event JSON
+// (chrome://tracing, ui.perfetto.dev): one complete ("X") slice per Lua call on its
+// thread's track, and one slice per frame on a separate "Frames" track per thread.
+// Events are streamed straight from TraceReader to a buffered writer, so the export
+// never holds more than the name table in memory.
+// Uses no game classes; shared by TraceAnalyzer and the in-game export.
+public class ChromeTraceWriter {
+    private static final int PID = 1;
+    private static final int FRAMES_TID_OFFSET = 100_000; // Frames track of thread N is tid N + offset
+
+    private final Writer out;
+    private final IntFunction<String> names;
+    private final Map<Integer, String> escapedNames = new HashMap<>();
+    private final Set<Integer> namedTracks = new HashSet<>();
+    private final StringBuilder scratch = new StringBuilder(64);
+    private boolean first = true;
+    private long frameNumber = 0;
+    public long eventCount = 0;
+
+    private ChromeTraceWriter(Writer out, IntFunction<String> names) {
+        this.out = out;
+        this.names = names;
+    }
+
+    // Write calls and frames that start within [fromNs, toNs] (ns since trace origin) to outFile
+    // names maps a funcId to its display label
+    public static long write(TraceReader reader, File outFile, long fromNs, long toNs, IntFunction<String> names) throws IOException {
+        try (Writer writer = new BufferedWriter(new FileWriter(outFile, false), 1 << 16)) {
+            ChromeTraceWriter chrome = new ChromeTraceWriter(writer, names);
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            IOException[] failure = {null};
+            reader.forEach((funcId, thread, kind, start, duration, self, weight) -> {
+                if (failure[0] != null || start < fromNs || start > toNs) {
+                    return;
+                }
+                try {
+                    chrome.event(funcId, thread, kind, start, duration, self, weight);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            writer.write("\n]}\n");
+            return chrome.eventCount;
+        }
+    }
+
+    // End (ns since origin) of the latest record, to anchor "last N seconds" exports
+    public static long findEndNanos(TraceReader reader) throws IOException {
+        long[] end = {0};
+        reader.forEach((funcId, thread, kind, start, duration, self, weight) -> {
+            if (start + duration > end[0]) {
+                end[0] = start + duration;
+            }
+        });
+        return end[0];
+    }
+
+    private void event(int funcId, int thread, int kind, long start, long duration, long self, int weight) throws IOException {
+        if (kind == TraceFormat.KIND_FRAME) {
+            int tid = thread + FRAMES_TID_OFFSET;
+            nameTrack(tid, "Frames (thread " + thread + ")");
+            beginEvent();
+            out.write("{\"name\":\"Frame\",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":" + PID + ",\"tid\":");
+            out.write(Integer.toString(tid));
+            writeTimes(start, duration);
+            out.write(",\"args\":{\"frame\":");
+            out.write(Long.toString(++frameNumber));
+            out.write("}}");
+            return;
+        }
+        if (kind != TraceFormat.KIND_CALL) {
+            return;
+        }
+        nameTrack(thread, "Lua thread " + thread);
+        beginEvent();
+        out.write("{\"name\":\"");
+        out.write(escapedNames.computeIfAbsent(funcId, id -> escape(names.apply(id))));
+        out.write("\",\"cat\":\"lua\",\"ph\":\"X\",\"pid\":" + PID + ",\"tid\":");
+        out.write(Integer.toString(thread));
+        writeTimes(start, duration);
+        out.write(",\"args\":{\"self_us\":");
+        writeMicros(self);
+        if (weight > 1) {
+            out.write(",\"weight\":");
+            out.write(Integer.toString(weight));
+        }
+        out.write("}}");
+    }
+
+    private void nameTrack(int tid, String name) throws IOException {
+        if (namedTracks.add(tid)) {
+            beginEvent();
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + PID + ",\"tid\":" + tid
+                + ",\"args\":{\"name\":\"" + escape(name) + "\"}}");
+        }
+    }
+
+    private void beginEvent() throws IOException {
+        if (!first) {
+            out.write(",\n");
+        }
+        first = false;
+        eventCount++;
+    }
+
+    private void writeTimes(long start, long duration) throws IOException {
+        out.write(",\"ts\":");
+        writeMicros(start);
+        out.write(",\"dur\":");
+        writeMicros(duration);
+    }
+
+    // ns as microseconds with 3 decimals, without going through String.format per event
+    private void writeMicros(long nanos) throws IOException {
+        StringBuilder sb = scratch;
+        sb.setLength(0);
+        if (nanos < 0) {
+            sb.append('-');
+            nanos = -nanos;
+        }
+        long frac = nanos % 1000;
+        sb.append(nanos / 1000).append('.');
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        sb.append(frac);
+        out.append(sb);
+    }
+
+    private static String escape(String s) {
+        if (s == null) {
+            return "(null)";
+        }
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,39 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process-wide 50ms tick counter shared by all TimingStats instances
+// Advanced once per frame from Patch_UITransition, by readers before a query and by every
+// AsyncAggregator pass (which also runs on headless servers, where there are no UI frames),
+// so the recording path only reads a volatile long instead of calling System.nanoTime()
+public class EpochClock {
+    public static final long TICK_NS = 50_000_000L; // Each tick represents 50ms in nanoseconds
+    public static final long TICK_MS = TICK_NS / 1_000_000L;
+
+    private static final long originNs = System.nanoTime();
+    private static final AtomicLong currentTick = new AtomicLong();
+
+    // Recompute the current tick from wall-clock time; cheap enough for once-per-frame use
+    public static long advance() {
+        long tick = (System.nanoTime() - originNs) / TICK_NS;
+        // Racing callers can only move the clock forward
+        return currentTick.accumulateAndGet(tick, Math::max);
+    }
+
+    // Tick a System.nanoTime() timestamp falls in, e.g. a sample's start time
+    public static long tickAt(long nanos) {
+        long tick = (nanos - originNs) / TICK_NS;
+        return tick > 0 ? tick : 0;
+    }
+
+    // Current tick as of the last advance() call
+    public static long now() {
+        return currentTick.get();
+    }
+
+    // Convert a duration in milliseconds to a whole number of ticks (at least 1)
+    public static int ticksFor(long durationMS) {
+        long ticks = durationMS / TICK_MS;
+        return ticks < 1 ? 1 : (int) Math.min(ticks, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,178 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per-Lua-event cost, fed by Patch_LuaEventManager and by samples tagged with the event
+// that was being dispatched when they ran (ThreadState.eventId)
+// For each event: a TimingStats of whole dispatches (count = fires, sum = total time),
+// a running count of listener calls (hooked calls made directly by the dispatch), and the
+// self time of the calls made under it, split by mod.
+public class EventStats {
+    public static final int NONE = 0; // "No event"; ids start at 1 so a zeroed @Patch.Local means none
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile Entry[] entries = new Entry[64]; // Indexed by event id, grown on demand
+
+    static class Entry {
+        final String name;
+        volatile TimingStats fires = new TimingStats();
+        volatile TimingStats[] mods = new TimingStats[16]; // Indexed by ModRegistry id
+        long fireCount = 0;      // All-time, for listeners per fire; events fire on the main thread
+        long listenerCalls = 0;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        synchronized TimingStats modStats(int modId) {
+            TimingStats[] m = mods;
+            if (modId >= m.length) {
+                m = java.util.Arrays.copyOf(m, Math.max(m.length * 2, modId + 1));
+                mods = m;
+            }
+            if (m[modId] == null) {
+                m[modId] = new TimingStats();
+            }
+            return m[modId];
+        }
+
+        double getListenersPerFire() {
+            return fireCount > 0 ? (double) listenerCalls / fireCount : 0.0;
+        }
+    }
+
+    // Event name -> id; a lookup on an interned constant string, so no allocation after the first fire
+    public static int idFor(String event) {
+        if (event == null) {
+            return NONE;
+        }
+        Integer id = ids.get(event);
+        if (id != null) {
+            return id;
+        }
+        return register(event);
+    }
+
+    private static synchronized int register(String event) {
+        Integer existing = ids.get(event);
+        if (existing != null) {
+            return existing;
+        }
+        int id = ids.size() + 1;
+        Entry[] e = entries;
+        if (id >= e.length) {
+            e = java.util.Arrays.copyOf(e, e.length * 2);
+        }
+        e[id] = new Entry(event);
+        entries = e;
+        ids.put(event, id);
+        return id;
+    }
+
+    private static Entry entry(int eventId) {
+        Entry[] e = entries;
+        return eventId > NONE && eventId < e.length ? e[eventId] : null;
+    }
+
+    // One finished dispatch of the event
+    static void recordFire(int eventId, int thread, long startTimeNs, long durationNanos) {
+        Entry entry = entry(eventId);
+        if (entry != null) {
+            entry.fireCount++;
+            entry.fires.addSample(thread, startTimeNs, durationNanos, durationNanos, 1);
+        }
+    }
+
+    // A hooked call made directly by the event's dispatch (see ThreadState.exit)
+    static void countListener(int eventId, int weight) {
+        Entry entry = entry(eventId);
+        if (entry != null) {
+            entry.listenerCalls += weight;
+        }
+    }
+
+    // Self time of a call made while the event was being dispatched
+    static void addSample(int eventId, int modId, int thread, long startTimeNs, long selfNanos, int weight) {
+        Entry entry = entry(eventId);
+        if (entry == null) {
+            return;
+        }
+        TimingStats[] m = entry.mods;
+        TimingStats stats = modId < m.length ? m[modId] : null;
+        if (stats == null) {
+            stats = entry.modStats(modId);
+        }
+        stats.addSample(thread, startTimeNs, selfNanos, selfNanos, weight);
+    }
+
+    // Top events by dispatch time, as rows of (EVENT, name) for the OSD and log
+    // count is fires, so the average column is ms per fire
+    public static List<PerformanceMonitor.StatsEntryWithWindow> getTopEntries(long windowDurationMS, int limit) {
+        List<PerformanceMonitor.StatsEntryWithWindow> rows = new ArrayList<>();
+        Entry[] e = entries;
+        for (Entry entry : e) {
+            if (entry == null) {
+                continue;
+            }
+            TimingStats stats = entry.fires;
+            TimingStats.WindowStats windowStats = stats.getWindowStats(windowDurationMS, entry.name);
+            if (windowStats != null) {
+                rows.add(new PerformanceMonitor.StatsEntryWithWindow(new FileInfo(FilePrefix.EVENT, entry.name), stats, windowStats));
+            }
+        }
+        rows.sort((a, b) -> Long.compare(b.windowStats.sum, a.windowStats.sum));
+        if (rows.size() > limit) {
+            rows = new ArrayList<>(rows.subList(0, limit));
+        }
+        for (PerformanceMonitor.StatsEntryWithWindow row : rows) {
+            row.windowStats.histogram = new long[LatencyHistogram.BIN_COUNT];
+            row.stats.collectHistogram(windowDurationMS, row.windowStats.histogram);
+        }
+        return rows;
+    }
+
+    // "OnTick: 2.3 listeners/fire; ModA 12.345ms, ModB 4.567ms, ..." (self time over the window), or null if unknown
+    public static String getBreakdown(String event, long windowDurationMS, int maxMods) {
+        Integer id = ids.get(event);
+        Entry entry = id != null ? entry(id) : null;
+        if (entry == null) {
+            return null;
+        }
+        List<long[]> mods = new ArrayList<>(); // {modId, selfSum}
+        TimingStats[] m = entry.mods;
+        for (int modId = 0; modId < m.length; modId++) {
+            if (m[modId] == null) {
+                continue;
+            }
+            TimingStats.WindowStats windowStats = m[modId].getWindowStats(windowDurationMS, entry.name);
+            if (windowStats != null && windowStats.selfSum > 0) {
+                mods.add(new long[]{modId, windowStats.selfSum});
+            }
+        }
+        mods.sort((a, b) -> Long.compare(b[1], a[1]));
+
+        StringBuilder sb = new StringBuilder(entry.name).append(": ")
+            .append(String.format("%.1f", entry.getListenersPerFire())).append(" listeners/fire");
+        for (int i = 0; i < mods.size() && i < maxMods; i++) {
+            sb.append(i == 0 ? "; " : ", ")
+                .append(ModRegistry.nameOf((int) mods.get(i)[0]))
+                .append(' ')
+                .append(String.format("%.3f", mods.get(i)[1] / 1_000_000.0))
+                .append("ms");
+        }
+        return sb.toString();
+    }
+
+    public static synchronized void clear() {
+        for (Entry entry : entries) {
+            if (entry != null) {
+                entry.fires = new TimingStats();
+                entry.mods = new TimingStats[entry.mods.length];
+                entry.fireCount = 0;
+                entry.listenerCalls = 0;
+            }
+        }
+    }
+}
@@ -16,5 +16,21 @@ public class FileInfo {
         this.relativePath = relativePath;
         this.line = line;
     }
+
+    // Mod folder (first path component) for LMOD/SMOD/WMOD, "LuaPerfMon" for internal
+    // metrics, otherwise the prefix name
+    public String getModName() {
+        if (prefix == FilePrefix.INTERNAL) {
+            return "LuaPerfMon";
+        }
+        if (prefix == FilePrefix.LMOD || prefix == FilePrefix.SMOD || prefix == FilePrefix.WMOD) {
+            String normalizedPath = relativePath.replace('\\', '/');
+            int firstSlash = normalizedPath.indexOf('/');
+            if (firstSlash > 0) {
+                return normalizedPath.substring(0, firstSlash);
+            }
+        }
+        return prefix != null ? prefix.name() : FilePrefix.UNK.name();
+    }
 }
 
@@ -6,6 +6,7 @@ public enum FilePrefix {
     SMOD,  // Steam mod
     WMOD,  // Workshop mod
     INTERNAL,  // Internal LuaPerfMon metrics
+    EVENT,     // Lua event rows (GroupBy.EVENT), not a file location
     UNK    // Unknown
 }
 
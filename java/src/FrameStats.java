@@ -0,0 +1,272 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-frame Lua time accounting, closed out once per frame by Patch_UITransition
+// Lua time and call counts come from plain per-thread running totals that the pcall hooks
+// bump (see ThreadState.exit), so the hot path stays lock-free; closing a frame sums the
+// totals across threads and stores the delta. Per-mod self time arrives later, from
+// wherever samples are aggregated (possibly the AsyncAggregator thread): attribute() only
+// appends it to that thread's AttributionRing, and closeFrame() drains the rings and matches
+// each entry to its frame by start time. Only the first MOD_SLOTS mods seen in a frame get
+// their own slot; the rest are lumped together.
+// Threads that finished are dropped on the next close, once their totals and rings are folded in.
+public class FrameStats {
+    public static final int CAPACITY = 1024; // Recent frames kept (~17s at 60fps)
+    private static final int MOD_SLOTS = 8;
+
+    private static final long[] startNs = new long[CAPACITY];
+    private static final long[] durationNs = new long[CAPACITY];
+    private static final long[] luaNs = new long[CAPACITY];
+    private static final long[] calls = new long[CAPACITY];
+    private static final int[][] modIds = new int[CAPACITY][MOD_SLOTS];
+    private static final long[][] modNs = new long[CAPACITY][MOD_SLOTS];
+    private static final long[] otherModNs = new long[CAPACITY];
+
+    private static volatile long frameCount = 0; // Frames opened so far; frame frameCount-1 is the open one
+    private static long lastLuaNsTotal = 0;
+    private static long lastCallsTotal = 0;
+    private static long retiredLuaNsTotal = 0; // Totals of pruned (finished) threads
+    private static long retiredCallsTotal = 0;
+
+    static final CopyOnWriteArrayList<ThreadState> threads = new CopyOnWriteArrayList<>();
+
+    private static final CopyOnWriteArrayList<AttributionRing> rings = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<AttributionRing> ring = ThreadLocal.withInitial(() -> {
+        AttributionRing r = new AttributionRing();
+        rings.add(r);
+        return r;
+    });
+
+    // Single-producer/single-consumer queue of (mod, start, self time) from one attributing
+    // thread to closeFrame(); when closeFrame() falls behind, entries are dropped, never blocked on
+    private static class AttributionRing {
+        static final int SIZE = 8192; // Power of two
+        static final int MASK = SIZE - 1;
+
+        final int[] modIds = new int[SIZE];
+        final long[] starts = new long[SIZE];
+        final long[] nanos = new long[SIZE];
+        final AtomicLong tail = new AtomicLong(); // Published by the producer
+        final AtomicLong head = new AtomicLong(); // Published by closeFrame()
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        void offer(int modId, long startTimeNs, long selfNanos) {
+            long t = tail.get();
+            if (t - head.get() >= SIZE) {
+                return; // Full
+            }
+            int i = (int) (t & MASK);
+            modIds[i] = modId;
+            starts[i] = startTimeNs;
+            nanos[i] = selfNanos;
+            tail.lazySet(t + 1);
+        }
+
+        // Caller holds the FrameStats lock
+        void drain() {
+            long h = head.get();
+            long t = tail.get();
+            for (long n = h; n < t; n++) {
+                int i = (int) (n & MASK);
+                attributeLocked(modIds[i], starts[i], nanos[i]);
+            }
+            head.lazySet(t);
+        }
+
+        boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+
+    // Summary of the closed frames within a window
+    public static class Summary {
+        public int frames;
+        public long totalLuaNs;
+        public long worstLuaNs;
+        public long worstCalls;
+        public long worstFrameNs;
+        public int worstTopModId = ModRegistry.NONE;
+        public long worstTopModNs;
+
+        public double getAverageLuaMs() {
+            return frames > 0 ? totalLuaNs / 1_000_000.0 / frames : 0.0;
+        }
+
+        public double getWorstLuaMs() {
+            return worstLuaNs / 1_000_000.0;
+        }
+
+        // "Lua/frame: avg 1.23ms, worst 8.45ms (312 calls, top: SomeMod 6.10ms) over 600 frames"
+        public String format() {
+            return appendTo(new StringBuilder(96)).toString();
+        }
+
+        public StringBuilder appendTo(StringBuilder sb) {
+            sb.append("Lua/frame: avg ");
+            TextFormat.appendFixed(sb, getAverageLuaMs(), 2, 0).append("ms, worst ");
+            TextFormat.appendFixed(sb, getWorstLuaMs(), 2, 0).append("ms (").append(worstCalls).append(" calls");
+            if (worstTopModId != ModRegistry.NONE) {
+                sb.append(", top: ").append(ModRegistry.nameOf(worstTopModId)).append(' ');
+                TextFormat.appendFixed(sb, worstTopModNs / 1_000_000.0, 2, 0).append("ms");
+            }
+            return sb.append(") over ").append(frames).append(" frames");
+        }
+    }
+
+    // Called once per frame, always from the same thread
+    // The frame ring is updated under the lock; hitch capture, the governor and the hooks entry
+    // run after it's released, so readers and the snapshot copy never wait on each other
+    public static void closeFrame() {
+        long now = System.nanoTime();
+        boolean closed;
+        long closedStartNs;
+        long closedDurationNs;
+        long closedLuaNs;
+        long closedCalls;
+        synchronized (FrameStats.class) {
+            closed = closeFrameLocked(now);
+            int slot = (int) ((frameCount - 2 + CAPACITY) % CAPACITY);
+            closedStartNs = startNs[slot];
+            closedDurationNs = durationNs[slot];
+            closedLuaNs = luaNs[slot];
+            closedCalls = calls[slot];
+        }
+        if (!closed) {
+            return;
+        }
+        HitchCapture.onFrameClosed(closedStartNs, now, closedLuaNs);
+        OverheadGovernor.onFrame(closedDurationNs, closedCalls);
+        if (PerformanceMonitor.trackInternalPerformance && closedCalls > 0 && HookOverhead.isCalibrated()) {
+            // Estimated from the calibrated per-call cost; timing each call would double the overhead
+            PerformanceMonitor.recordInternalPerformance(FunctionRegistry.HOOKS_ID, closedStartNs, HookOverhead.getCallNs(), (int) Math.min(closedCalls, Integer.MAX_VALUE));
+        }
+    }
+
+    // Returns whether a frame was closed (false for the very first call, which only opens one)
+    private static boolean closeFrameLocked(long now) {
+        for (AttributionRing r : rings) {
+            // Checked before draining, so everything the owner offered is drained first
+            boolean ownerAlive = r.isOwnerAlive();
+            r.drain();
+            if (!ownerAlive) {
+                rings.remove(r);
+            }
+        }
+        for (ThreadState state : threads) {
+            if (!state.isOwnerAlive()) {
+                retiredLuaNsTotal += state.luaNsTotal;
+                retiredCallsTotal += state.callsTotal;
+                threads.remove(state);
+            }
+        }
+        long luaTotal = retiredLuaNsTotal;
+        long callsTotal = retiredCallsTotal;
+        for (ThreadState state : threads) {
+            luaTotal += state.luaNsTotal;
+            callsTotal += state.callsTotal;
+        }
+        boolean closed = frameCount > 0;
+        if (closed) {
+            int slot = (int) ((frameCount - 1) % CAPACITY);
+            durationNs[slot] = now - startNs[slot];
+            luaNs[slot] = luaTotal - lastLuaNsTotal;
+            calls[slot] = callsTotal - lastCallsTotal;
+        }
+        lastLuaNsTotal = luaTotal;
+        lastCallsTotal = callsTotal;
+
+        int slot = (int) (frameCount % CAPACITY);
+        startNs[slot] = now;
+        durationNs[slot] = 0;
+        luaNs[slot] = 0;
+        calls[slot] = 0;
+        java.util.Arrays.fill(modIds[slot], ModRegistry.NONE);
+        java.util.Arrays.fill(modNs[slot], 0);
+        otherModNs[slot] = 0;
+        frameCount++;
+        return closed;
+    }
+
+    // Charge selfNanos of a call that started at startTimeNs to modId in that call's frame
+    // Lock-free: queued on the calling thread's ring and applied by the next closeFrame()
+    public static void attribute(int modId, long startTimeNs, long selfNanos) {
+        if (frameCount == 0) {
+            return; // No frames are being closed (yet), e.g. on a dedicated server
+        }
+        ring.get().offer(modId, startTimeNs, selfNanos);
+    }
+
+    // Caller holds the class lock
+    private static void attributeLocked(int modId, long startTimeNs, long selfNanos) {
+        long frame = frameCount - 1;
+        long oldest = Math.max(0, frameCount - CAPACITY);
+        while (frame >= oldest && startNs[(int) (frame % CAPACITY)] > startTimeNs) {
+            frame--;
+        }
+        if (frame < oldest) {
+            return; // Older than the ring, or before the first frame
+        }
+        int slot = (int) (frame % CAPACITY);
+        int[] ids = modIds[slot];
+        for (int i = 0; i < MOD_SLOTS; i++) {
+            if (ids[i] == modId) {
+                modNs[slot][i] += selfNanos;
+                return;
+            }
+            if (ids[i] == ModRegistry.NONE) {
+                ids[i] = modId;
+                modNs[slot][i] = selfNanos;
+                return;
+            }
+        }
+        otherModNs[slot] += selfNanos;
+    }
+
+    // Closed frames that started within the last windowMS; the worst is by Lua time
+    public static Summary summarize(long windowMS) {
+        return summarize(windowMS, new Summary());
+    }
+
+    // Fills (and returns) a caller-owned Summary, so periodic readers don't allocate
+    public static synchronized Summary summarize(long windowMS, Summary summary) {
+        summary.frames = 0;
+        summary.totalLuaNs = 0;
+        summary.worstLuaNs = 0;
+        summary.worstCalls = 0;
+        summary.worstFrameNs = 0;
+        summary.worstTopModId = ModRegistry.NONE;
+        summary.worstTopModNs = 0;
+        long cutoff = System.nanoTime() - windowMS * 1_000_000L;
+        long oldest = Math.max(0, frameCount - CAPACITY);
+        for (long frame = frameCount - 2; frame >= oldest; frame--) {
+            int slot = (int) (frame % CAPACITY);
+            if (startNs[slot] < cutoff) {
+                break;
+            }
+            summary.frames++;
+            summary.totalLuaNs += luaNs[slot];
+            if (summary.frames == 1 || luaNs[slot] > summary.worstLuaNs) {
+                summary.worstLuaNs = luaNs[slot];
+                summary.worstCalls = calls[slot];
+                summary.worstFrameNs = durationNs[slot];
+                summary.worstTopModId = ModRegistry.NONE;
+                summary.worstTopModNs = 0;
+                for (int i = 0; i < MOD_SLOTS && modIds[slot][i] != ModRegistry.NONE; i++) {
+                    if (modNs[slot][i] > summary.worstTopModNs) {
+                        summary.worstTopModId = modIds[slot][i];
+                        summary.worstTopModNs = modNs[slot][i];
+                    }
+                }
+            }
+        }
+        return summary;
+    }
+
+    public static synchronized void clear() {
+        frameCount = 0;
+    }
+}
@@ -0,0 +1,231 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Dense ids for recorded functions, with their metadata and stats in id-indexed arrays
+// A LuaClosure is identified by its Prototype (shared by every closure of the same function),
+// other callables by themselves. The identity map is an open-addressing table with weak keys,
+// so prototypes dropped by a Lua reload can be collected. Lookups are lock-free; a miss
+// registers the function under a lock: its "file:line" name is built and its path parsed once,
+// and functions with the same name share one id (e.g. a reloaded file's new prototypes).
+// Ids are stable until clear(), i.e. PerformanceMonitor.reset().
+public class FunctionRegistry {
+    public static final int NULL_ID = 0;   // Null function object
+    public static final int HOOKS_ID = 1;  // "LuaPerfMon hooks" internal entry
+    public static final int RENDER_ID = 2; // "LuaPerfMon.render()" internal entry
+
+    private static final int INITIAL_TABLE_SIZE = 4096; // Power of two
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public static class Entry {
+        public final int id;
+        public final String name; // Raw "file:line" key, or the internal entry's label
+        public final FileInfo info; // Parsed once, at registration
+        public final int modId;
+        final TimingStats stats = new TimingStats();
+
+        Entry(int id, String name, FileInfo info) {
+            this.id = id;
+            this.name = name;
+            this.info = info;
+            this.modId = ModRegistry.idFor(info);
+        }
+    }
+
+    // Open-addressing identity table; keys are published after their ids so a reader that sees
+    // a key also sees its id. Replaced as a whole when it grows or is cleared
+    private static class Table {
+        final AtomicReferenceArray<WeakReference<Object>> keys;
+        final int[] ids;
+        final int mask;
+        int used = 0; // Occupied slots, including ones whose key was collected
+
+        Table(int size) {
+            keys = new AtomicReferenceArray<>(size);
+            ids = new int[size];
+            mask = size - 1;
+        }
+    }
+
+    private static volatile Table table = new Table(INITIAL_TABLE_SIZE);
+    private static volatile Entry[] entries = new Entry[INITIAL_CAPACITY];
+    private static volatile int count = 0;
+    private static final HashMap<String, Integer> idsByName = new HashMap<>(); // Guarded by the class lock
+
+    static {
+        registerInternal();
+    }
+
+    // Id for a function object, registering it on first sight
+    public static int idFor(Object funcObj) {
+        if (funcObj == null) {
+            return NULL_ID;
+        }
+        Object key = identityKey(funcObj);
+        Table t = table;
+        int slot = System.identityHashCode(key) & t.mask;
+        while (true) {
+            WeakReference<Object> ref = t.keys.get(slot);
+            if (ref == null) {
+                return register(funcObj, key);
+            }
+            if (ref.get() == key) {
+                return t.ids[slot];
+            }
+            slot = (slot + 1) & t.mask;
+        }
+    }
+
+    // Entry for an id; null only for ids from before the last clear()
+    public static Entry get(int id) {
+        Entry[] current = entries;
+        return id >= 0 && id < current.length ? current[id] : null;
+    }
+
+    // Number of ids handed out so far; ids are 0 .. getCount() - 1
+    public static int getCount() {
+        return count;
+    }
+
+    private static Object identityKey(Object funcObj) {
+        if (funcObj instanceof se.krka.kahlua.vm.LuaClosure) {
+            se.krka.kahlua.vm.LuaClosure closure = (se.krka.kahlua.vm.LuaClosure) funcObj;
+            if (closure.prototype != null) {
+                return closure.prototype;
+            }
+        }
+        return funcObj;
+    }
+
+    private static synchronized int register(Object funcObj, Object key) {
+        // Re-probe: another thread may have registered it, or the table may have been replaced
+        Table t = table;
+        int slot = System.identityHashCode(key) & t.mask;
+        while (true) {
+            WeakReference<Object> ref = t.keys.get(slot);
+            if (ref == null) {
+                break;
+            }
+            if (ref.get() == key) {
+                return t.ids[slot];
+            }
+            slot = (slot + 1) & t.mask;
+        }
+
+        String name = getObjName(funcObj);
+        Integer existing = idsByName.get(name);
+        int id = existing != null ? existing : addEntry(name, resolveFileInfo(name));
+
+        t.ids[slot] = id;
+        t.keys.lazySet(slot, new WeakReference<>(key));
+        if (++t.used * 2 > t.keys.length()) {
+            table = rehash(t);
+        }
+        return id;
+    }
+
+    // Caller holds the class lock
+    private static int addEntry(String name, FileInfo info) {
+        int id = count;
+        Entry[] current = entries;
+        if (id == current.length) {
+            current = java.util.Arrays.copyOf(current, current.length * 2);
+        }
+        Entry entry = new Entry(id, name, info);
+        current[id] = entry;
+        entries = current;
+        count = id + 1;
+        idsByName.put(name, id);
+        GroupStats.addMember(entry);
+        return id;
+    }
+
+    // Copy live keys into a table sized for them; collected keys are dropped here
+    private static Table rehash(Table old) {
+        int live = 0;
+        for (int i = 0; i < old.keys.length(); i++) {
+            WeakReference<Object> ref = old.keys.get(i);
+            if (ref != null && ref.get() != null) {
+                live++;
+            }
+        }
+        int size = INITIAL_TABLE_SIZE;
+        while (size < live * 4) {
+            size *= 2;
+        }
+        Table t = new Table(size);
+        for (int i = 0; i < old.keys.length(); i++) {
+            WeakReference<Object> ref = old.keys.get(i);
+            Object key = ref != null ? ref.get() : null;
+            if (key == null) {
+                continue;
+            }
+            int slot = System.identityHashCode(key) & t.mask;
+            while (t.keys.get(slot) != null) {
+                slot = (slot + 1) & t.mask;
+            }
+            t.ids[slot] = old.ids[i];
+            t.keys.set(slot, ref);
+            t.used++;
+        }
+        return t;
+    }
+
+    public static synchronized void clear() {
+        table = new Table(INITIAL_TABLE_SIZE);
+        entries = new Entry[INITIAL_CAPACITY];
+        count = 0;
+        idsByName.clear();
+        GroupStats.clear(); // Its member lists hold the old ids
+        registerInternal();
+    }
+
+    private static void registerInternal() {
+        addEntry("(null)", new FileInfo(FilePrefix.UNK, "(null)", 0));
+        addEntry("LuaPerfMon hooks", new FileInfo(FilePrefix.INTERNAL, "LuaPerfMon hooks", 0));
+        addEntry("LuaPerfMon.render()", new FileInfo(FilePrefix.INTERNAL, "LuaPerfMon.render()", 0));
+    }
+
+    // Raw "filename:line" name, no path parsing
+    private static String getObjName(Object funcObj) {
+        if (funcObj instanceof se.krka.kahlua.vm.LuaClosure) {
+            se.krka.kahlua.vm.LuaClosure closure = (se.krka.kahlua.vm.LuaClosure) funcObj;
+            if (closure.prototype != null) {
+                String fname = closure.prototype.filename != null
+                    ? closure.prototype.filename
+                    : closure.prototype.file != null
+                        ? closure.prototype.file
+                        : "unknown";
+                int line = closure.prototype.lines != null && closure.prototype.lines.length > 0
+                    ? closure.prototype.lines[0]
+                    : 0;
+                return fname + ":" + line;
+            }
+        }
+        return "(" + funcObj.getClass().getSimpleName() + ")" + funcObj.toString();
+    }
+
+    // Resolve simple key (filename:line) to FileInfo with path parsing
+    private static FileInfo resolveFileInfo(String name) {
+        int colonIndex = name.lastIndexOf(':');
+        if (colonIndex > 0) {
+            String fname = name.substring(0, colonIndex);
+            int line = 0;
+            try {
+                line = Integer.parseInt(name.substring(colonIndex + 1));
+            } catch (NumberFormatException e) {
+                // Ignore, line stays 0
+            }
+
+            // Now do the expensive path parsing
+            FileInfo info = PathParser.getFileInfo(fname);
+            if (info.prefix == null) {
+                info.prefix = FilePrefix.UNK;
+            }
+            return new FileInfo(info.prefix, info.relativePath, line);
+        }
+        return new FileInfo(FilePrefix.UNK, name, 0);
+    }
+}
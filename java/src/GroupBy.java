@@ -0,0 +1,9 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+// Aggregation level shown by the OSD and the log
+public enum GroupBy {
+    FUNCTION, // One row per Lua function (file:line)
+    MOD,      // One row per mod (first folder of LMOD/SMOD/WMOD paths; GAME, UNK etc. otherwise)
+    PREFIX,   // One row per FilePrefix
+    EVENT     // One row per Lua event (OnTick, ...), by whole-dispatch time; see EventStats
+}
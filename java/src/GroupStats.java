@@ -0,0 +1,319 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Per-mod and per-FilePrefix totals, maintained as samples are recorded
+// A sample only touches one 50ms tick cell of its mod and one of its prefix (in the recording
+// thread's stripe, as in TimingStats). A tick cell is folded into its second's cell when it's
+// reused for a newer tick, and second cells into minute cells the same way, so every sample
+// lives in exactly one cell and a query just sums the cells of each tier that fall in the window.
+// Groups are charged self time (a mod's total would otherwise count its nested calls several
+// times), so their total and self columns are the same; count and min/max describe the member
+// calls. Only percentiles come from the member functions, and only for the rows returned.
+public class GroupStats {
+    private static final int TICKS_PER_SECOND = (int) (1000 / EpochClock.TICK_MS);
+    private static final int SECONDS_PER_MINUTE = 60;
+    // Cells per tier, direct-mapped by epoch; a little more than the 5s, 2min and 1h the tiers cover
+    private static final int TICK_CELLS = 128;
+    private static final int SECOND_CELLS = 128;
+    private static final int MINUTE_CELLS = 64;
+    private static final int TICK_HISTORY = 5 * TICKS_PER_SECOND; // Sparklines up to this come from ticks, longer ones from seconds
+    private static final int SECOND_HISTORY = 120;
+
+    private static volatile Group[] modGroups = new Group[16]; // Indexed by ModRegistry id, grown on demand
+    private static volatile Group[] prefixGroups = newPrefixGroups(); // Indexed by FilePrefix ordinal
+
+    // One mod or prefix: per-thread stripes of cells, and the FunctionRegistry ids of its functions
+    static class Group {
+        private volatile Stripe[] stripes = new Stripe[0]; // Indexed by ThreadState.threadIndex, grown on demand
+        private volatile int[] members = new int[4];
+        private volatile int memberCount = 0; // Written under the FunctionRegistry lock
+
+        void add(int thread, long tick, long durationNanos, long selfNanos, int weight) {
+            getStripe(thread).ticks.add(tick, weight, selfNanos * weight, durationNanos, durationNanos);
+        }
+
+        private Stripe getStripe(int index) {
+            Stripe[] current = stripes;
+            if (index < current.length && current[index] != null) {
+                return current[index];
+            }
+            synchronized (this) {
+                current = stripes;
+                if (index >= current.length) {
+                    current = java.util.Arrays.copyOf(current, index + 1);
+                } else if (current[index] != null) {
+                    return current[index];
+                } else {
+                    current = current.clone();
+                }
+                Stripe stripe = new Stripe();
+                current[index] = stripe;
+                stripes = current;
+                return stripe;
+            }
+        }
+
+        // Caller holds the FunctionRegistry lock
+        void addMember(int id) {
+            int[] ids = members;
+            int n = memberCount;
+            if (n == ids.length) {
+                ids = java.util.Arrays.copyOf(ids, n * 2);
+                members = ids;
+            }
+            ids[n] = id;
+            memberCount = n + 1;
+        }
+
+        // Add ticks (currentTick - numTicks, currentTick] into result; the window's oldest edge is
+        // rounded to the nearest second (or minute) for data that has been folded into those tiers
+        void collectWindow(long currentTick, long numTicks, TimingStats.WindowStats result) {
+            long lowerTick = currentTick - numTicks + 1;
+            long currentSecond = currentTick / TICKS_PER_SECOND;
+            long firstSecond = (lowerTick + TICKS_PER_SECOND / 2) / TICKS_PER_SECOND;
+            long ticksPerMinute = (long) TICKS_PER_SECOND * SECONDS_PER_MINUTE;
+            long firstMinute = (lowerTick + ticksPerMinute / 2) / ticksPerMinute;
+            for (Stripe stripe : stripes) {
+                if (stripe != null) {
+                    stripe.ticks.collect(lowerTick, currentTick, result);
+                    stripe.seconds.collect(firstSecond, currentSecond, result);
+                    stripe.minutes.collect(firstMinute, currentTick / ticksPerMinute, result);
+                }
+            }
+        }
+
+        // Latency histogram over the window, merged from the member functions
+        void collectHistogram(long windowDurationMS, long[] out) {
+            int n = memberCount;
+            int[] ids = members;
+            for (int i = 0; i < n; i++) {
+                FunctionRegistry.Entry entry = FunctionRegistry.get(ids[i]);
+                if (entry != null) {
+                    entry.stats.collectHistogram(windowDurationMS, out);
+                }
+            }
+        }
+
+        // Sparkline of self time, as TimingStats.collectHistory: up to 5s per tick, longer per second (at most 2 minutes)
+        void collectHistory(long historyMS, long[] out) {
+            long currentTick = EpochClock.now();
+            long numTicks = EpochClock.ticksFor(historyMS);
+            long[] values;
+            long first;
+            if (numTicks <= TICK_HISTORY) {
+                values = new long[(int) numTicks];
+                first = currentTick - numTicks + 1;
+                for (Stripe stripe : stripes) {
+                    if (stripe != null) {
+                        stripe.ticks.addSums(first, 1, values);
+                    }
+                }
+            } else {
+                long currentSecond = currentTick / TICKS_PER_SECOND;
+                values = new long[(int) Math.min((numTicks + TICKS_PER_SECOND - 1) / TICKS_PER_SECOND, SECOND_HISTORY)];
+                first = currentSecond - values.length + 1;
+                for (Stripe stripe : stripes) {
+                    if (stripe != null) {
+                        stripe.seconds.addSums(first, 1, values);
+                        stripe.ticks.addSums(first, TICKS_PER_SECOND, values); // Ticks not folded yet
+                    }
+                }
+            }
+            spread(values, out);
+        }
+    }
+
+    // One thread's cells of a group, written only by whichever single thread records its samples
+    private static class Stripe {
+        final Tier minutes = new Tier(MINUTE_CELLS, null, 0);
+        final Tier seconds = new Tier(SECOND_CELLS, minutes, SECONDS_PER_MINUTE);
+        final Tier ticks = new Tier(TICK_CELLS, seconds, TICKS_PER_SECOND);
+    }
+
+    // Cells of one granularity, slot = epoch % cells; a cell about to be reused for a newer epoch
+    // is folded into the next (coarser) tier first
+    private static class Tier {
+        final long[] epochs;
+        final long[] counts;
+        final long[] sums; // Self time
+        final long[] mins;
+        final long[] maxs;
+        final Tier next;
+        final int ratio; // Epochs of this tier per epoch of the next
+
+        Tier(int cells, Tier next, int ratio) {
+            epochs = new long[cells];
+            counts = new long[cells];
+            sums = new long[cells];
+            mins = new long[cells];
+            maxs = new long[cells];
+            java.util.Arrays.fill(epochs, -1);
+            this.next = next;
+            this.ratio = ratio;
+        }
+
+        void add(long epoch, long count, long sum, long min, long max) {
+            int slot = (int) (epoch % epochs.length);
+            long held = epochs[slot];
+            if (held != epoch) {
+                if (held > epoch) {
+                    // Older than this tier keeps (a late sample): straight to the next one, or dropped past the last
+                    if (next != null) {
+                        next.add(epoch / ratio, count, sum, min, max);
+                    }
+                    return;
+                }
+                if (next != null && counts[slot] > 0) {
+                    next.add(held / ratio, counts[slot], sums[slot], mins[slot], maxs[slot]);
+                }
+                epochs[slot] = epoch;
+                counts[slot] = 0;
+                sums[slot] = 0;
+                mins[slot] = Long.MAX_VALUE;
+                maxs[slot] = Long.MIN_VALUE;
+            }
+            counts[slot] += count;
+            sums[slot] += sum;
+            if (min < mins[slot]) mins[slot] = min;
+            if (max > maxs[slot]) maxs[slot] = max;
+        }
+
+        // Add cells for epochs [fromEpoch, toEpoch] into result
+        void collect(long fromEpoch, long toEpoch, TimingStats.WindowStats result) {
+            for (int i = 0; i < epochs.length; i++) {
+                long epoch = epochs[i];
+                if (epoch >= fromEpoch && epoch <= toEpoch && counts[i] > 0) {
+                    result.merge(counts[i], sums[i], sums[i], mins[i], maxs[i]);
+                }
+            }
+        }
+
+        // Add each cell's sum to values[(epoch / per) - first], for cells that land in values
+        void addSums(long first, int per, long[] values) {
+            for (int i = 0; i < epochs.length; i++) {
+                long epoch = epochs[i];
+                if (epoch < 0) {
+                    continue;
+                }
+                long index = epoch / per - first;
+                if (index >= 0 && index < values.length) {
+                    values[(int) index] += sums[i];
+                }
+            }
+        }
+    }
+
+    // Spread per-epoch values over out.length bins, as TimingStats' CellRing.collectSeries does:
+    // each epoch is split between the bins it overlaps, so a bin gets the average per-epoch value
+    private static void spread(long[] values, long[] out) {
+        long span = values.length;
+        int bins = out.length;
+        for (int e = 0; e < values.length; e++) {
+            if (values[e] == 0) {
+                continue;
+            }
+            long lo = (long) e * bins;
+            long hi = lo + bins;
+            for (int b = (int) (lo / span); b < bins && (long) b * span < hi; b++) {
+                long overlap = Math.min(hi, (long) (b + 1) * span) - Math.max(lo, (long) b * span);
+                out[b] += values[e] * overlap / span;
+            }
+        }
+    }
+
+    // Called by PerformanceMonitor.recordTiming for every recorded sample
+    static void addSample(FunctionRegistry.Entry entry, int thread, long startTimeNs, long durationNanos, long selfNanos, int weight) {
+        FilePrefix prefix = entry.info.prefix != null ? entry.info.prefix : FilePrefix.UNK;
+        if (prefix == FilePrefix.INTERNAL) {
+            return;
+        }
+        long tick = EpochClock.tickAt(startTimeNs);
+        modGroup(entry.modId).add(thread, tick, durationNanos, selfNanos, weight);
+        prefixGroups[prefix.ordinal()].add(thread, tick, durationNanos, selfNanos, weight);
+    }
+
+    // Called by FunctionRegistry when a function is registered (under its lock)
+    static void addMember(FunctionRegistry.Entry entry) {
+        FilePrefix prefix = entry.info.prefix != null ? entry.info.prefix : FilePrefix.UNK;
+        if (prefix == FilePrefix.INTERNAL) {
+            return;
+        }
+        modGroup(entry.modId).addMember(entry.id);
+        prefixGroups[prefix.ordinal()].addMember(entry.id);
+    }
+
+    private static Group modGroup(int modId) {
+        Group[] groups = modGroups;
+        Group group = modId < groups.length ? groups[modId] : null;
+        return group != null ? group : createModGroup(modId);
+    }
+
+    private static synchronized Group createModGroup(int modId) {
+        Group[] groups = modGroups;
+        if (modId >= groups.length) {
+            groups = java.util.Arrays.copyOf(groups, Math.max(groups.length * 2, modId + 1));
+            modGroups = groups;
+        }
+        if (groups[modId] == null) {
+            groups[modId] = new Group();
+        }
+        return groups[modId];
+    }
+
+    private static Group[] newPrefixGroups() {
+        Group[] groups = new Group[FilePrefix.values().length];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new Group();
+        }
+        return groups;
+    }
+
+    // Drop all totals and members; called by FunctionRegistry.clear(), before ids are handed out again
+    static synchronized void clear() {
+        modGroups = new Group[16];
+        prefixGroups = newPrefixGroups();
+    }
+
+    // Top groups over the window, in the same shape as PerformanceMonitor.getTopEntries
+    // Rows carry a FileInfo of (prefix, group name) so renderers can treat them like functions
+    public static List<PerformanceMonitor.StatsEntryWithWindow> getTopEntries(GroupBy groupBy, long windowDurationMS, int limit) {
+        List<PerformanceMonitor.StatsEntryWithWindow> rows = new ArrayList<>();
+        boolean byMod = groupBy == GroupBy.MOD;
+        if (!byMod && groupBy != GroupBy.PREFIX) {
+            return rows;
+        }
+
+        long currentTick = EpochClock.advance();
+        long numTicks = EpochClock.ticksFor(Math.min(windowDurationMS, TimingStats.MAX_WINDOW_MS));
+        Group[] groups = byMod ? modGroups : prefixGroups;
+        FilePrefix[] prefixes = FilePrefix.values();
+        for (int key = 0; key < groups.length; key++) {
+            Group group = groups[key];
+            if (group == null) {
+                continue;
+            }
+            TimingStats.WindowStats stats = new TimingStats.WindowStats(0, 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+            group.collectWindow(currentTick, numTicks, stats);
+            if (stats.count == 0) {
+                continue;
+            }
+            FileInfo info = byMod
+                ? new FileInfo(ModRegistry.prefixOf(key), ModRegistry.nameOf(key))
+                : new FileInfo(prefixes[key], "(all)");
+            rows.add(new PerformanceMonitor.StatsEntryWithWindow(info, stats, group));
+        }
+
+        boolean bySelfTime = ZBLuaPerfMon.rankBySelfTime;
+        rows.sort((a, b) -> Long.compare(b.windowStats.getRankSum(bySelfTime), a.windowStats.getRankSum(bySelfTime)));
+        if (rows.size() > limit) {
+            rows = new ArrayList<>(rows.subList(0, limit));
+        }
+        for (PerformanceMonitor.StatsEntryWithWindow row : rows) {
+            row.windowStats.histogram = new long[LatencyHistogram.BIN_COUNT];
+            row.collectHistogram(windowDurationMS, row.windowStats.histogram);
+        }
+        return rows;
+    }
+}
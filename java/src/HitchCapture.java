@@ -0,0 +1,180 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import zombie.ZomboidFileSystem;
+
+// Automatic hitch capture: when a frame's Lua time goes over ZBLuaPerfMon.hitchThresholdMS,
+// copy every thread's CallHistory into a preallocated snapshot and have a background thread
+// write it, in start order with nesting and durations, to a file in the cache dir.
+// The copy on the frame thread is plain array copies; name resolution, sorting and I/O all
+// happen on the writer thread. Captures are rate-limited by ZBLuaPerfMon.hitchCooldownSeconds,
+// and a hitch that happens while the previous capture is still being written is skipped.
+public class HitchCapture {
+    private static final String FILE_PREFIX = "ZBLuaPerfMon_hitch_";
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss_SSS");
+    private static final int SNAPSHOT_CAPACITY = 4 * CallHistory.CAPACITY; // Newest entries win across threads
+
+    // Held weakly, so a finished thread's history (and the closures in it) goes away with its ThreadState
+    static final CopyOnWriteArrayList<WeakReference<CallHistory>> histories = new CopyOnWriteArrayList<>();
+
+    // Snapshot, owned by the frame thread until `pending` is set, then by the writer until it's cleared
+    private static final Object[] snapFuncs = new Object[SNAPSHOT_CAPACITY];
+    private static final long[] snapStarts = new long[SNAPSHOT_CAPACITY];
+    private static final long[] snapDurations = new long[SNAPSHOT_CAPACITY];
+    private static final long[] snapSelfTimes = new long[SNAPSHOT_CAPACITY];
+    private static final int[] snapDepths = new int[SNAPSHOT_CAPACITY];
+    private static final int[] snapThreads = new int[SNAPSHOT_CAPACITY];
+    private static int snapSize = 0;
+    private static long snapFrameStartNs = 0;
+    private static long snapFrameEndNs = 0;
+    private static long snapFrameLuaNs = 0;
+
+    private static volatile boolean pending = false;
+    private static volatile Thread writer = null;
+    private static long lastCaptureNs = 0;
+    private static volatile long skipped = 0;
+    private static volatile String lastFile = null;
+
+    // Called by FrameStats.closeFrame() for every closed frame, on the frame thread after it has
+    // released the FrameStats lock
+    static void onFrameClosed(long frameStartNs, long frameEndNs, long frameLuaNs) {
+        if (frameLuaNs < ZBLuaPerfMon.hitchThresholdMS * 1_000_000L) {
+            return;
+        }
+        if (lastCaptureNs != 0 && frameEndNs - lastCaptureNs < ZBLuaPerfMon.hitchCooldownSeconds * 1_000_000_000L) {
+            return;
+        }
+        if (pending) {
+            skipped = skipped + 1;
+            return;
+        }
+        lastCaptureNs = frameEndNs;
+        snapshot(frameStartNs, frameEndNs, frameLuaNs);
+        if (ZBLuaPerfMon.hitchFreezeOSD) {
+            ZBLuaPerfMon.osdFrozen = true;
+        }
+        pending = true;
+        ensureWriter();
+        LockSupport.unpark(writer);
+    }
+
+    // Racy copy: other threads keep writing their histories, so an entry or two may be overwritten mid-copy
+    private static void snapshot(long frameStartNs, long frameEndNs, long frameLuaNs) {
+        int size = 0;
+        int perThread = Math.max(1, SNAPSHOT_CAPACITY / Math.max(1, histories.size()));
+        for (WeakReference<CallHistory> ref : histories) {
+            CallHistory history = ref.get();
+            if (history == null) {
+                continue;
+            }
+            long written = history.written.get();
+            int count = (int) Math.min(Math.min(written, CallHistory.CAPACITY), Math.min(perThread, SNAPSHOT_CAPACITY - size));
+            for (long n = written - count; n < written; n++) {
+                int i = (int) (n & (CallHistory.CAPACITY - 1));
+                snapFuncs[size] = history.funcs[i];
+                snapStarts[size] = history.starts[i];
+                snapDurations[size] = history.durations[i];
+                snapSelfTimes[size] = history.selfTimes[i];
+                snapDepths[size] = history.depths[i];
+                snapThreads[size] = history.thread;
+                size++;
+            }
+        }
+        snapSize = size;
+        snapFrameStartNs = frameStartNs;
+        snapFrameEndNs = frameEndNs;
+        snapFrameLuaNs = frameLuaNs;
+    }
+
+    private static void ensureWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (HitchCapture.class) {
+            if (writer == null) {
+                Thread t = new Thread(HitchCapture::run, "ZBLuaPerfMon-hitch-writer");
+                t.setDaemon(true);
+                t.start();
+                writer = t;
+            }
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            while (!pending) {
+                LockSupport.park();
+            }
+            try {
+                String path = write();
+                if (path != null) {
+                    lastFile = path;
+                    System.out.println("[ZBLuaPerfMon] Hitch (" + String.format("%.1f", snapFrameLuaNs / 1_000_000.0)
+                        + "ms of Lua in one frame) captured to " + path);
+                }
+            } catch (Throwable e) {
+                System.err.println("[ZBLuaPerfMon] Failed to write hitch capture: " + e);
+            } finally {
+                java.util.Arrays.fill(snapFuncs, 0, snapSize, null); // Don't keep closures alive
+                pending = false;
+            }
+        }
+    }
+
+    private static String write() throws IOException {
+        if (ZomboidFileSystem.instance == null) {
+            return null;
+        }
+        Integer[] order = new Integer[snapSize];
+        for (int i = 0; i < snapSize; i++) {
+            order[i] = i;
+        }
+        java.util.Arrays.sort(order, (a, b) -> Long.compare(snapStarts[a], snapStarts[b]));
+
+        File file = new File(ZomboidFileSystem.instance.getCacheDir(), FILE_PREFIX + LocalDateTime.now().format(FILE_TIMESTAMP) + ".txt");
+        file.getParentFile().mkdirs();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file, false))) {
+            out.write(String.format("# Hitch: %.3fms of Lua in a %.3fms frame; %d calls captured (times relative to frame start)",
+                snapFrameLuaNs / 1_000_000.0, (snapFrameEndNs - snapFrameStartNs) / 1_000_000.0, snapSize));
+            out.newLine();
+            out.write("#   Start(ms)  Duration(ms)  Self(ms)  Thread  Function (indented by depth)");
+            out.newLine();
+            boolean markedFrame = false;
+            for (int idx : order) {
+                if (!markedFrame && snapStarts[idx] >= snapFrameStartNs) {
+                    out.write("# ---------- hitch frame starts ----------");
+                    out.newLine();
+                    markedFrame = true;
+                }
+                out.write(String.format("%12.3f  %12.3f  %8.3f  %6d  ",
+                    (snapStarts[idx] - snapFrameStartNs) / 1_000_000.0,
+                    snapDurations[idx] / 1_000_000.0,
+                    snapSelfTimes[idx] / 1_000_000.0,
+                    snapThreads[idx]));
+                for (int d = 0; d < Math.min(snapDepths[idx], 32); d++) {
+                    out.write("  ");
+                }
+                out.write(PerformanceMonitor.getDisplayName(snapFuncs[idx]));
+                out.newLine();
+            }
+        }
+        return file.getAbsolutePath();
+    }
+
+    public static String getLastFile() {
+        return lastFile;
+    }
+
+    public static long getSkipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,92 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+// Cost of the LuaCaller hooks themselves, measured once on this JVM and machine
+// - timedNs: what an empty hooked call still measures between its two clock reads;
+//   subtracted from every recorded duration
+// - callNs: everything one hooked call adds to its caller (sampling check, shadow stack,
+//   clock reads, async ring store); subtracted from the enclosing hooked frames, and
+//   reported per call as the "LuaPerfMon hooks" internal entry
+// Calibration runs on a background thread when PerformanceMonitor is loaded, i.e. before mod
+// options apply, so optional per-call work (call paths, hitch history) is not included.
+// Both values stay 0 (no compensation) until it finishes.
+// The calibrated loop models the async path (a ring store per call). With asyncRecording off,
+// each recorded call also pays for recordTiming (lookups, stats update) on the Lua thread,
+// which isn't included, so compensation under-corrects there (OverheadGovernor measures that
+// part separately). It runs early, on a MAX_PRIORITY thread, before the real hooks are
+// JIT-compiled, which can skew it either way; the minimum over rounds keeps it from
+// overshooting much.
+public class HookOverhead {
+    private static final int ROUNDS = 20;
+    private static final int CALLS_PER_ROUND = SampleRing.CAPACITY;
+    private static final long MAX_COMPENSATION_NS = 2_000; // Sanity clamp for a disturbed calibration
+
+    static volatile long timedNs = 0;
+    static volatile long callNs = 0;
+    private static volatile boolean calibrated = false;
+    private static volatile long sink; // Consumes the clock loop's result so it can't be optimized away
+
+    private static final Object CALIBRATION_FUN = new Object();
+
+    static void startCalibration() {
+        Thread thread = new Thread(HookOverhead::calibrate, "ZBLuaPerfMon-calibration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY); // Less likely to be preempted mid-round
+        thread.start();
+    }
+
+    // Each round times a batch of calls and keeps the per-call average; the minimum over rounds
+    // is the least disturbed one (the first rounds also warm up the JIT)
+    private static void calibrate() {
+        ThreadState state = ThreadState.detached();
+        SampleRing ring = new SampleRing(state.threadIndex, false);
+        long bestClock = Long.MAX_VALUE;
+        long bestCall = Long.MAX_VALUE;
+        long clockSum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            // Back-to-back clock reads: what an empty hooked call measures
+            long t0 = System.nanoTime();
+            for (int i = 0; i < CALLS_PER_ROUND; i++) {
+                long start = System.nanoTime();
+                clockSum += System.nanoTime() - start;
+            }
+            bestClock = Math.min(bestClock, (System.nanoTime() - t0) / CALLS_PER_ROUND);
+
+            // The same work the enter and exit hooks do around an empty call
+            t0 = System.nanoTime();
+            for (int i = 0; i < CALLS_PER_ROUND; i++) {
+                int depth = state.enter(CALIBRATION_FUN);
+                if (!state.isTimed()) {
+                    state.exitUntimed(depth);
+                    continue;
+                }
+                long start = System.nanoTime();
+                long duration = System.nanoTime() - start;
+                long self = state.exit(CALIBRATION_FUN, depth, start, duration);
+                ring.offer(CALIBRATION_FUN, start, duration, self, 1, EventStats.NONE);
+            }
+            bestCall = Math.min(bestCall, (System.nanoTime() - t0) / CALLS_PER_ROUND);
+            ring.discard();
+        }
+        sink = clockSum;
+
+        // A single clock read lands inside the measured window; the rest of the pair is outside it
+        timedNs = Math.min(bestClock / 2, MAX_COMPENSATION_NS);
+        callNs = Math.min(Math.max(bestCall, timedNs), MAX_COMPENSATION_NS);
+        calibrated = true;
+        System.out.println("[ZBLuaPerfMon] Hook overhead: " + callNs + "ns per call, " + timedNs + "ns subtracted from each sample");
+    }
+
+    public static boolean isCalibrated() {
+        return calibrated;
+    }
+
+    // Nanoseconds the hooks add per hooked call, 0 until calibrated
+    public static long getCallNs() {
+        return callNs;
+    }
+
+    // Nanoseconds subtracted from each recorded duration, 0 until calibrated
+    public static long getTimedNs() {
+        return timedNs;
+    }
+}
@@ -0,0 +1,74 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+// Fixed-size log-linear latency histogram layout (HDR-style)
+// Durations are bucketed in ~1us units (ns >> 10) with SUB_BUCKETS linear sub-buckets per power
+// of two, so every bin is at most 25% wide. Histograms are plain count arrays of BIN_COUNT
+// entries and merge by element-wise addition, across tiers, cells and threads alike.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int UNIT_SHIFT = 10; // 1024ns units
+    private static final int MAX_EXPONENT = 24; // 2^24 units ~= 17s; anything longer lands in the last bin
+
+    public static final int BIN_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // Bin index for a duration; allocation-free and branch-light for the recording path
+    public static int binFor(long durationNanos) {
+        long units = durationNanos >> UNIT_SHIFT;
+        if (units < SUB_BUCKETS) {
+            return units < 0 ? 0 : (int) units;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(units);
+        if (exponent > MAX_EXPONENT) {
+            return BIN_COUNT - 1;
+        }
+        int subBucket = (int) (units >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Lowest duration (ns) that falls into the bin
+    public static long binLowNanos(int bin) {
+        if (bin < SUB_BUCKETS) {
+            return (long) bin << UNIT_SHIFT;
+        }
+        int exponent = bin / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long units = (long) (SUB_BUCKETS + bin % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return units << UNIT_SHIFT;
+    }
+
+    // Width (ns) of the bin
+    public static long binWidthNanos(int bin) {
+        if (bin < SUB_BUCKETS) {
+            return 1L << UNIT_SHIFT;
+        }
+        int exponent = bin / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return 1L << (exponent - SUB_BUCKET_BITS + UNIT_SHIFT);
+    }
+
+    // Value at the given percentile (0..100) of a merged histogram, as the midpoint of the
+    // matching bin clamped to the observed [min, max]; 0 if the histogram is empty
+    public static long percentileNanos(long[] counts, double percentile, long min, long max) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile / 100.0);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int bin = 0; bin < counts.length; bin++) {
+            seen += counts[bin];
+            if (seen >= target) {
+                long value = binLowNanos(bin) + binWidthNanos(bin) / 2;
+                if (value < min) value = min;
+                if (value > max) value = max;
+                return value;
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,37 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Small dense ids for mod names (FileInfo.getModName()), so per-frame and per-mod
+// accounting can use int slots instead of strings. Ids are never reused or cleared.
+public class ModRegistry {
+    public static final int NONE = -1;
+
+    private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private static final CopyOnWriteArrayList<String> names = new CopyOnWriteArrayList<>();
+    private static final CopyOnWriteArrayList<FilePrefix> prefixes = new CopyOnWriteArrayList<>(); // Prefix the mod was first seen with
+
+    public static int idFor(FileInfo info) {
+        String modName = info.getModName();
+        Integer id = ids.get(modName);
+        if (id != null) {
+            return id;
+        }
+        synchronized (names) {
+            return ids.computeIfAbsent(modName, k -> {
+                prefixes.add(info.prefix != null ? info.prefix : FilePrefix.UNK);
+                names.add(k);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    public static String nameOf(int id) {
+        return id >= 0 && id < names.size() ? names.get(id) : "?";
+    }
+
+    public static FilePrefix prefixOf(int id) {
+        return id >= 0 && id < prefixes.size() ? prefixes.get(id) : FilePrefix.UNK;
+    }
+}
@@ -0,0 +1,122 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps the monitor's own game-thread cost under ZBLuaPerfMon.overheadBudgetPercent of frame time
+// Cost per frame = hooked calls * calibrated HookOverhead.callNs + measured PerfRenderer time
+// + synchronous recording time (with asyncRecording off, measured on 1 in RECORD_COST_SAMPLING
+// recorded calls). About once a second the fraction is checked: over budget steps one mode up,
+// and a few calm periods in a row (well under budget) step one mode back down. Each mode only
+// ever tightens the user's settings: the effective sampling rate, OSD update interval and, in
+// sync mode, minTimeNS are the stricter of the user's value and the mode's. minTimeNS is left
+// alone in async mode, where the calls it filters cost the Lua thread only a ring store.
+// Runs on the frame thread after FrameStats has released its lock, so logging a mode change
+// never holds up readers.
+public class OverheadGovernor {
+    private static final String[] MODE_NAMES = { "full", "reduced", "sampled", "heavily sampled", "minimal" };
+    private static final long[] MIN_TIME_NS     = { 0, 100_000, 100_000, 250_000, 500_000 }; // Sync mode only
+    private static final int[] MIN_SAMPLING     = { 1, 1, 4, 16, 64 };
+    private static final int[] OSD_INTERVAL_MUL = { 1, 2, 2, 4, 4 };
+    public static final int MAX_MODE = MODE_NAMES.length - 1;
+
+    private static final long PERIOD_NS = 1_000_000_000L;
+    private static final double RELAX_FRACTION = 0.4; // Of the budget; leaves room for the cost to grow back
+    private static final int RELAX_PERIODS = 5;
+    static final int RECORD_COST_SAMPLING = 64; // Synchronously recorded calls per one whose cost is measured
+
+    private static volatile int mode = 0;
+    private static volatile double lastOverheadPercent = 0;
+    private static long periodFrameNs = 0;
+    private static long periodOverheadNs = 0;
+    private static long pendingRenderNs = 0; // Render time of the frame being closed
+    private static final LongAdder recordNs = new LongAdder(); // Estimated synchronous recording time since the last frame
+    private static int calmPeriods = 0;
+
+    // Called by PerfRenderer with its own duration, once per frame
+    static void addRenderNs(long nanos) {
+        pendingRenderNs += nanos;
+    }
+
+    // Called by Patch_LuaCaller.recordTime (any Lua thread) with a measured recording, scaled by RECORD_COST_SAMPLING
+    static void addRecordNs(long nanos) {
+        recordNs.add(nanos);
+    }
+
+    // Called once per frame by FrameStats.closeFrame() (game thread, outside its lock) with the closed frame's totals
+    static void onFrame(long frameNs, long calls) {
+        long renderNs = pendingRenderNs;
+        pendingRenderNs = 0;
+        long syncRecordNs = recordNs.sumThenReset();
+        if (!ZBLuaPerfMon.governorEnabled) {
+            return;
+        }
+        // calls counts every hooked call; only the sampled ones (about 1 in N) ran the timed hooks
+        long hookedCalls = calls / Math.max(1, Patch_LuaCaller.samplingRate);
+        periodFrameNs += frameNs;
+        periodOverheadNs += hookedCalls * HookOverhead.callNs + renderNs + syncRecordNs;
+        if (periodFrameNs < PERIOD_NS) {
+            return;
+        }
+
+        double percent = periodOverheadNs * 100.0 / periodFrameNs;
+        periodFrameNs = 0;
+        periodOverheadNs = 0;
+        lastOverheadPercent = percent;
+
+        double budget = ZBLuaPerfMon.overheadBudgetPercent;
+        if (percent > budget) {
+            calmPeriods = 0;
+            if (mode < MAX_MODE) {
+                setMode(mode + 1);
+            }
+        } else if (percent < budget * RELAX_FRACTION && mode > 0) {
+            if (++calmPeriods >= RELAX_PERIODS) {
+                calmPeriods = 0;
+                setMode(mode - 1);
+            }
+        } else {
+            calmPeriods = 0;
+        }
+    }
+
+    private static void setMode(int newMode) {
+        mode = newMode;
+        apply();
+        System.out.println("[ZBLuaPerfMon] Monitor overhead " + String.format("%.2f", lastOverheadPercent)
+            + "% of frame time, switching to " + MODE_NAMES[newMode] + " mode");
+    }
+
+    // Recompute the effective settings from the user's; called on mode changes and by the setters
+    static void apply() {
+        int m = ZBLuaPerfMon.governorEnabled ? mode : 0;
+        long minTimeNS = ZBLuaPerfMon.minTimeMicroseconds * 1000L;
+        Patch_LuaCaller.minTimeNS = ZBLuaPerfMon.asyncRecording ? minTimeNS : Math.max(minTimeNS, MIN_TIME_NS[m]);
+        Patch_LuaCaller.samplingRate = Math.max(ZBLuaPerfMon.samplingRate, MIN_SAMPLING[m]);
+    }
+
+    static void reset() {
+        mode = 0;
+        calmPeriods = 0;
+        periodFrameNs = 0;
+        periodOverheadNs = 0;
+        lastOverheadPercent = 0;
+        apply();
+    }
+
+    public static int getOSDUpdateIntervalMS() {
+        return ZBLuaPerfMon.osdUpdateIntervalMS * OSD_INTERVAL_MUL[ZBLuaPerfMon.governorEnabled ? mode : 0];
+    }
+
+    public static int getMode() {
+        return mode;
+    }
+
+    public static String getModeName() {
+        return MODE_NAMES[mode];
+    }
+
+    // Monitor cost as a percentage of frame time over the last full period
+    public static double getOverheadPercent() {
+        return lastOverheadPercent;
+    }
+}
@@ -7,38 +7,70 @@ import se.krka.kahlua.integration.LuaCaller;
 
 public class Patch_LuaCaller {
     public static long minTimeNS = 50_000;
+    // Time 1 in N outermost calls, together with everything nested in them, and scale counts/totals
+    // by N when reporting; 1 = time every call. Unsampled calls still keep the shadow stack
+    // (so depths and listener counts stay exact) but skip the clock reads and recording
+    public static int samplingRate = 1;
 
-    public static void recordTime(Object fun, long duration, long startTime) {
+    public static void recordTime(ThreadState state, Object fun, long duration, long selfTime, long startTime) {
         // Skip statistics gathering if both OSD and logs are disabled
         if (!shouldGatherStatistics()) {
             return;
         }
-        PerformanceMonitor.recordTiming(fun, startTime, duration);
+        int weight = state.getWeight();
+        if (ZBLuaPerfMon.asyncRecording) {
+            // Just a few stores; AsyncAggregator does the lookups, stats update and logging
+            state.getSampleRing().offer(fun, startTime, duration, selfTime, weight, state.eventId);
+            return;
+        }
+        // Recorded on this thread: the governor needs its cost, which HookOverhead doesn't cover
+        if (state.timeNextRecord()) {
+            long t0 = System.nanoTime();
+            PerformanceMonitor.recordTiming(fun, startTime, duration, selfTime, weight, state.threadIndex, state.eventId);
+            PerformanceMonitor.checkAndLogStatistics();
+            OverheadGovernor.addRecordNs((System.nanoTime() - t0) * OverheadGovernor.RECORD_COST_SAMPLING);
+            return;
+        }
+        PerformanceMonitor.recordTiming(fun, startTime, duration, selfTime, weight, state.threadIndex, state.eventId);
         PerformanceMonitor.checkAndLogStatistics();
     }
 
-    private static boolean shouldGatherStatistics() {
+    static boolean shouldGatherStatistics() {
         // Gather statistics if:
         // - OSD is enabled (for display), OR
         // - Logging is enabled (for console output)
         // Note: logWhenOSDOff only affects whether logs are written when OSD is off,
         // but statistics gathering is controlled by logEnabled itself
-        return ZBLuaPerfMon.osdEnabled || PerformanceMonitor.logEnabled;
+        // - A binary trace is being recorded
+        return ZBLuaPerfMon.osdEnabled || PerformanceMonitor.logEnabled || TraceRecorder.isRecording();
     }
 
     @Patch(className = "se.krka.kahlua.integration.LuaCaller", methodName="pcall")
     public static class Patch_pcall {
         @Patch.OnEnter
-        public static void enter(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
-            startTime = System.nanoTime();
+        public static void enter(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            ThreadState state = ThreadState.get();
+            depth = state.enter(fun);
+            if (state.isTimed())
+                startTime = System.nanoTime();
         }
 
         @Patch.OnExit
-        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
+        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            if (depth == 0)
+                return;
+
+            if (startTime == 0) {
+                ThreadState.get().exitUntimed(depth);
+                return;
+            }
+
             long endTime = System.nanoTime();
-            long duration = endTime - startTime;
+            ThreadState state = ThreadState.get();
+            long duration = state.compensate(depth, endTime - startTime);
+            long selfTime = state.exit(fun, depth, startTime, duration);
             if (duration >= minTimeNS) {
-                recordTime(fun, duration, startTime);
+                recordTime(state, fun, duration, selfTime, startTime);
             }
         }
     }
@@ -46,16 +78,29 @@ public class Patch_LuaCaller {
     @Patch(className = "se.krka.kahlua.integration.LuaCaller", methodName="pcallvoid")
     public static class Patch_pcallvoid {
         @Patch.OnEnter
-        public static void enter(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
-            startTime = System.nanoTime();
+        public static void enter(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            ThreadState state = ThreadState.get();
+            depth = state.enter(fun);
+            if (state.isTimed())
+                startTime = System.nanoTime();
         }
 
         @Patch.OnExit
-        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
+        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            if (depth == 0)
+                return;
+
+            if (startTime == 0) {
+                ThreadState.get().exitUntimed(depth);
+                return;
+            }
+
             long endTime = System.nanoTime();
-            long duration = endTime - startTime;
+            ThreadState state = ThreadState.get();
+            long duration = state.compensate(depth, endTime - startTime);
+            long selfTime = state.exit(fun, depth, startTime, duration);
             if (duration >= minTimeNS) {
-                recordTime(fun, duration, startTime);
+                recordTime(state, fun, duration, selfTime, startTime);
             }
         }
     }
@@ -63,16 +108,29 @@ public class Patch_LuaCaller {
     @Patch(className = "se.krka.kahlua.integration.LuaCaller", methodName="pcallBoolean")
     public static class Patch_pcallBoolean {
         @Patch.OnEnter
-        public static void enter(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
-            startTime = System.nanoTime();
+        public static void enter(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            ThreadState state = ThreadState.get();
+            depth = state.enter(fun);
+            if (state.isTimed())
+                startTime = System.nanoTime();
         }
 
         @Patch.OnExit
-        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
+        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            if (depth == 0)
+                return;
+
+            if (startTime == 0) {
+                ThreadState.get().exitUntimed(depth);
+                return;
+            }
+
             long endTime = System.nanoTime();
-            long duration = endTime - startTime;
+            ThreadState state = ThreadState.get();
+            long duration = state.compensate(depth, endTime - startTime);
+            long selfTime = state.exit(fun, depth, startTime, duration);
             if (duration >= minTimeNS) {
-                recordTime(fun, duration, startTime);
+                recordTime(state, fun, duration, selfTime, startTime);
             }
         }
     }
@@ -80,7 +138,7 @@ public class Patch_LuaCaller {
     @Patch(className = "se.krka.kahlua.integration.LuaCaller", methodName="protectedCallBoolean")
     public static class Patch_protectedCallBoolean {
         @Patch.OnEnter
-        public static void enter(@Patch.AllArguments Object[] args, @Patch.Local("startTime") long startTime) {
+        public static void enter(@Patch.AllArguments Object[] args, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
             // we need args[1] - functionObject
             if (args.length < 2)
                 return;
@@ -93,18 +151,28 @@ public class Patch_LuaCaller {
             if (args.length > 1 && args[1] instanceof Object[])
                 return;
 
-            startTime = System.nanoTime();
+            ThreadState state = ThreadState.get();
+            depth = state.enter(args[1]);
+            if (state.isTimed())
+                startTime = System.nanoTime();
         }
 
         @Patch.OnExit
-        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
-            if (startTime == 0)
+        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            if (depth == 0)
                 return;
 
+            if (startTime == 0) {
+                ThreadState.get().exitUntimed(depth);
+                return;
+            }
+
             long endTime = System.nanoTime();
-            long duration = endTime - startTime;
+            ThreadState state = ThreadState.get();
+            long duration = state.compensate(depth, endTime - startTime);
+            long selfTime = state.exit(fun, depth, startTime, duration);
             if (duration >= minTimeNS) {
-                recordTime(fun, duration, startTime);
+                recordTime(state, fun, duration, selfTime, startTime);
             }
         }
     }
@@ -112,7 +180,7 @@ public class Patch_LuaCaller {
     @Patch(className = "se.krka.kahlua.integration.LuaCaller", methodName="protectedCallVoid")
     public static class Patch_protectedCallVoid {
         @Patch.OnEnter
-        public static void enter(@Patch.AllArguments Object[] args, @Patch.Local("startTime") long startTime) {
+        public static void enter(@Patch.AllArguments Object[] args, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
             // we need args[1] - functionObject
             if (args.length < 2)
                 return;
@@ -125,18 +193,28 @@ public class Patch_LuaCaller {
             if (args.length > 1 && args[1] instanceof Object[])
                 return;
 
-            startTime = System.nanoTime();   
+            ThreadState state = ThreadState.get();
+            depth = state.enter(args[1]);
+            if (state.isTimed())
+                startTime = System.nanoTime();
         }
 
         @Patch.OnExit
-        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime) {
-            if (startTime == 0)
+        public static void exit(@Patch.Argument(1) Object fun, @Patch.Local("startTime") long startTime, @Patch.Local("depth") int depth) {
+            if (depth == 0)
                 return;
 
+            if (startTime == 0) {
+                ThreadState.get().exitUntimed(depth);
+                return;
+            }
+
             long endTime = System.nanoTime();
-            long duration = endTime - startTime;
+            ThreadState state = ThreadState.get();
+            long duration = state.compensate(depth, endTime - startTime);
+            long selfTime = state.exit(fun, depth, startTime, duration);
             if (duration >= minTimeNS) {
-                recordTime(fun, duration, startTime);
+                recordTime(state, fun, duration, selfTime, startTime);
             }
         }
     }
@@ -0,0 +1,71 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import me.zed_0xff.zombie_buddy.Patch;
+
+// Tags Lua calls with the game event being dispatched (OnTick, OnPlayerUpdate, ...)
+// The event name is resolved to an id once and kept in ThreadState.eventId for the
+// duration of the dispatch; the previous value is restored on exit, so nested
+// triggers (an event fired from another event's listener) are attributed correctly.
+// Like the LuaCaller hooks, nothing is tracked while no statistics are being gathered.
+public class Patch_LuaEventManager {
+    public static void enterEvent(String event, ThreadState state) {
+        state.eventId = EventStats.idFor(event);
+        state.eventDepth = state.getDepth();
+    }
+
+    public static void exitEvent(ThreadState state, long startTime, int prevEvent, int prevEventDepth) {
+        EventStats.recordFire(state.eventId, state.threadIndex, startTime, System.nanoTime() - startTime);
+        state.eventId = prevEvent;
+        state.eventDepth = prevEventDepth;
+    }
+
+    @Patch(className = "zombie.Lua.LuaEventManager", methodName = "triggerEvent")
+    public static class Patch_triggerEvent {
+        @Patch.OnEnter
+        public static void enter(@Patch.Argument(0) String event, @Patch.Local("startTime") long startTime,
+                                 @Patch.Local("prevEvent") int prevEvent, @Patch.Local("prevEventDepth") int prevEventDepth) {
+            if (!Patch_LuaCaller.shouldGatherStatistics())
+                return; // Nothing would record the fire or the listeners' samples
+
+            ThreadState state = ThreadState.get();
+            prevEvent = state.eventId;
+            prevEventDepth = state.eventDepth;
+            enterEvent(event, state);
+            startTime = System.nanoTime();
+        }
+
+        @Patch.OnExit
+        public static void exit(@Patch.Local("startTime") long startTime,
+                                @Patch.Local("prevEvent") int prevEvent, @Patch.Local("prevEventDepth") int prevEventDepth) {
+            if (startTime == 0)
+                return;
+
+            exitEvent(ThreadState.get(), startTime, prevEvent, prevEventDepth);
+        }
+    }
+
+    @Patch(className = "zombie.Lua.LuaEventManager", methodName = "triggerEventGarbage")
+    public static class Patch_triggerEventGarbage {
+        @Patch.OnEnter
+        public static void enter(@Patch.Argument(0) String event, @Patch.Local("startTime") long startTime,
+                                 @Patch.Local("prevEvent") int prevEvent, @Patch.Local("prevEventDepth") int prevEventDepth) {
+            if (!Patch_LuaCaller.shouldGatherStatistics())
+                return; // Nothing would record the fire or the listeners' samples
+
+            ThreadState state = ThreadState.get();
+            prevEvent = state.eventId;
+            prevEventDepth = state.eventDepth;
+            enterEvent(event, state);
+            startTime = System.nanoTime();
+        }
+
+        @Patch.OnExit
+        public static void exit(@Patch.Local("startTime") long startTime,
+                                @Patch.Local("prevEvent") int prevEvent, @Patch.Local("prevEventDepth") int prevEventDepth) {
+            if (startTime == 0)
+                return;
+
+            exitEvent(ThreadState.get(), startTime, prevEvent, prevEventDepth);
+        }
+    }
+}
@@ -6,6 +6,9 @@ import me.zed_0xff.zombie_buddy.Patch;
 public class Patch_UITransition {
     @Patch.OnEnter
     public static void enter() {
+        EpochClock.advance();
+        FrameStats.closeFrame();
+        TraceRecorder.recordFrame(ThreadState.get().threadIndex);
         PerfRenderer.render();
     }
 }
@@ -2,7 +2,6 @@ package me.zed_0xff.zb_lua_perf_mon;
 
 import zombie.ZomboidFileSystem;
 import zombie.core.znet.SteamWorkshop;
-import java.io.File;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class PathParser {
@@ -28,128 +27,43 @@ public class PathParser {
         return info;
     }
     
+    // Roots a path is classified by, compiled into a trie; rebuilt after clearCache()
+    // A trie built before every source was available (no cache dir or game root yet, Steam not
+    // initialized or no installed item folders returned) is rebuilt on a later miss, at most
+    // MAX_ROOT_REBUILDS times, ROOT_REBUILD_INTERVAL_NS apart; after that it's kept as is
+    // (Steam paths are still caught by the workshop/content fallback)
+    private static final int MAX_ROOT_REBUILDS = 10;
+    private static final long ROOT_REBUILD_INTERVAL_NS = 1_000_000_000L;
+    private static volatile RootTrie roots = null;
+    private static int rootRebuilds = 0; // Guarded by the class lock
+    private static long lastRootBuildNs = 0; // Guarded by the class lock
+
     private static FileInfo parseFileInfo(String fname) {
         try {
             if (ZomboidFileSystem.instance == null) {
                 return new FileInfo(FilePrefix.UNK, fname);
             }
 
-            String normalized_fname = fname.replace('\\', '/');
-            String cacheDir = ZomboidFileSystem.instance.getCacheDir();
-            String relativePath = fname;
-
-            // Check for LOCAL_MOD: cacheDir/mods/...
-            if (cacheDir != null) {
-                String normalizedCacheDir = cacheDir.replace('\\', '/');
-                
-                String localModsPrefix = normalizedCacheDir + "/mods/";
-                if (normalized_fname.startsWith(localModsPrefix)) {
-                    relativePath = normalized_fname.substring(localModsPrefix.length());
-                    // Remove leading separator if present
-                    if (relativePath.startsWith("/")) {
-                        relativePath = relativePath.substring(1);
-                    }
-                    return new FileInfo(FilePrefix.LMOD, relativePath);
-                }
-
-                // Check for WORKSHOP: cacheDir/workshop/... (case-insensitive)
-                String workshopPrefixLower = (normalizedCacheDir + "/workshop/").toLowerCase();
-                String normalized_fname_lower = normalized_fname.toLowerCase();
-                if (normalized_fname_lower.startsWith(workshopPrefixLower)) {
-                    // Find the actual position of "/workshop/" in the original path (case-insensitive)
-                    int cacheDirEnd = normalizedCacheDir.length();
-                    String afterCacheDir = normalized_fname.substring(cacheDirEnd);
-                    String afterCacheDirLower = afterCacheDir.toLowerCase();
-                    int workshopIndex = afterCacheDirLower.indexOf("/workshop/");
-                    if (workshopIndex >= 0) {
-                        // Extract everything after "/workshop/"
-                        relativePath = afterCacheDir.substring(workshopIndex + "/workshop/".length());
-                        // Remove leading separator if present
-                        if (relativePath.startsWith("/")) {
-                            relativePath = relativePath.substring(1);
-                        }
-                        return new FileInfo(FilePrefix.WMOD, relativePath);
-                    }
-                }
-            }
-
-            // Check for STEAM_MOD: any path from GetInstalledItemFolders()
-            if (SteamWorkshop.instance != null) {
-                String[] steamFolders = SteamWorkshop.instance.GetInstalledItemFolders();
-                if (steamFolders != null) {
-                    for (String steamFolder : steamFolders) {
-                        if (steamFolder != null) {
-                            String normalizedSteamFolder = steamFolder.replace('\\', '/');
-                            if (normalized_fname.startsWith(normalizedSteamFolder)) {
-                                relativePath = normalized_fname.substring(normalizedSteamFolder.length());
-                                // Remove leading separator if present
-                                if (relativePath.startsWith("/")) {
-                                    relativePath = relativePath.substring(1);
-                                }
-                                // Strip "mods/" prefix if present
-                                String normalizedRelative = relativePath.replace('\\', '/');
-                                if (normalizedRelative.startsWith("mods/")) {
-                                    relativePath = relativePath.substring(5); // Skip "mods/"
-                                } else if (normalizedRelative.startsWith("mods\\")) {
-                                    relativePath = relativePath.substring(5); // Skip "mods\\"
-                                }
-                                // Strip "lua/" prefix if present for STEAM_MOD
-                                normalizedRelative = relativePath.replace('\\', '/');
-                                if (normalizedRelative.startsWith("lua/")) {
-                                    relativePath = relativePath.substring(4); // Skip "lua/"
-                                } else if (normalizedRelative.startsWith("lua\\")) {
-                                    relativePath = relativePath.substring(4); // Skip "lua\\"
-                                }
-                                return new FileInfo(FilePrefix.SMOD, relativePath);
-                            }
-                        }
-                    }
-                }
+            RootTrie trie = getRoots();
+            RootTrie.Root root = trie.match(fname);
+            if (root != null && root.prefix != FilePrefix.GAME) {
+                return new FileInfo(root.prefix, root.relativePath(fname));
             }
 
             // Check for workshop/content pattern (Steam workshop downloads)
             // This is a fallback for paths that match the pattern but weren't caught by GetInstalledItemFolders()
+            String normalized_fname = fname.replace('\\', '/');
             if (normalized_fname.contains("/workshop/content/")) {
                 // Find the /mods/ folder - everything before it is the steamFolder path
                 int modsIndex = normalized_fname.indexOf("/mods/");
                 if (modsIndex >= 0) {
                     // Strip the steamFolder path (everything up to and including /mods/)
-                    relativePath = normalized_fname.substring(modsIndex + 6); // Skip "/mods/"
-                    // Remove leading separator if present
-                    String normalizedRelative = relativePath.replace('\\', '/');
-                    if (normalizedRelative.startsWith("/")) {
-                        relativePath = relativePath.substring(1);
-                        normalizedRelative = relativePath.replace('\\', '/');
-                    }
-                    // Strip "mods/" prefix if still present
-                    if (normalizedRelative.startsWith("mods/")) {
-                        relativePath = relativePath.substring(5); // Skip "mods/"
-                        normalizedRelative = relativePath.replace('\\', '/');
-                    } else if (normalizedRelative.startsWith("mods\\")) {
-                        relativePath = relativePath.substring(5); // Skip "mods\\"
-                        normalizedRelative = relativePath.replace('\\', '/');
-                    }
-                    // Strip "lua/" prefix if present for STEAM_MOD
-                    if (normalizedRelative.startsWith("lua/")) {
-                        relativePath = relativePath.substring(4); // Skip "lua/"
-                    } else if (normalizedRelative.startsWith("lua\\")) {
-                        relativePath = relativePath.substring(4); // Skip "lua\\"
-                    }
-                    return new FileInfo(FilePrefix.SMOD, relativePath);
+                    return new FileInfo(FilePrefix.SMOD, RootTrie.stripSteamModPrefixes(normalized_fname.substring(modsIndex + 6)));
                 }
             }
 
-            // Not a mod, check if it's a game file and strip game root directory
-            relativePath = stripGameRootDir(fname);
-            if (!relativePath.equals(fname)) {
-                // Successfully stripped game root, it's a game file
-                // Strip "media/lua/" prefix if present
-                String normalizedRelative = relativePath.replace('\\', '/');
-                if (normalizedRelative.startsWith("media/lua/")) {
-                    // Work with normalized path for consistent substring calculation
-                    relativePath = normalizedRelative.substring(10); // Skip "media/lua/" (10 chars)
-                }
-                return new FileInfo(FilePrefix.GAME, relativePath);
+            if (root != null) {
+                return new FileInfo(FilePrefix.GAME, root.relativePath(fname));
             }
 
             // Couldn't determine source, return as-is
@@ -158,43 +72,83 @@ public class PathParser {
             return new FileInfo(FilePrefix.UNK, fname);
         }
     }
-    
-    private static String stripGameRootDir(String fname) {
-        try {
-            if (ZomboidFileSystem.instance != null && 
-                ZomboidFileSystem.instance.base != null && 
-                ZomboidFileSystem.instance.base.canonicalFile != null) {
-                File rootDir = ZomboidFileSystem.instance.base.canonicalFile;
-                String rootPath = rootDir.getAbsolutePath();
-                
-                // Normalize paths for comparison (handle both forward and backward slashes)
-                String normalizedRoot = rootPath.replace('\\', '/');
-                String normalizedFilename = fname.replace('\\', '/');
-                
-                // Remove trailing separator from root if present
-                if (normalizedRoot.endsWith("/")) {
-                    normalizedRoot = normalizedRoot.substring(0, normalizedRoot.length() - 1);
+
+    private static RootTrie getRoots() {
+        RootTrie trie = roots;
+        if (trie != null && trie.complete) {
+            return trie;
+        }
+        synchronized (PathParser.class) {
+            trie = roots;
+            long now = System.nanoTime();
+            if (trie == null || (!trie.complete && now - lastRootBuildNs >= ROOT_REBUILD_INTERVAL_NS)) {
+                boolean retry = trie != null;
+                trie = buildRoots();
+                lastRootBuildNs = now;
+                if (retry && ++rootRebuilds >= MAX_ROOT_REBUILDS) {
+                    trie.complete = true; // Give up until the next clearCache()
                 }
-                
-                // If fname starts with root path, strip it
-                if (normalizedFilename.startsWith(normalizedRoot)) {
-                    String relative = normalizedFilename.substring(normalizedRoot.length());
-                    // Remove leading separator if present
-                    if (relative.startsWith("/") || relative.startsWith("\\")) {
-                        relative = relative.substring(1);
-                    }
-                    return relative;
+                roots = trie;
+            }
+            return trie;
+        }
+    }
+
+    // Collect the current roots: local mods and workshop dirs under the cache dir, each
+    // installed Steam item folder (one JNI call per rebuild), and the game root
+    // Lower priority values win when several roots match, in the order the checks used to run
+    private static RootTrie buildRoots() {
+        RootTrie trie = new RootTrie();
+        boolean complete = true;
+
+        String cacheDir = ZomboidFileSystem.instance.getCacheDir();
+        if (cacheDir != null) {
+            String normalizedCacheDir = cacheDir.replace('\\', '/');
+            // LOCAL_MOD: cacheDir/mods/...
+            trie.add(new RootTrie.Root(normalizedCacheDir + "/mods/", FilePrefix.LMOD, true, 0));
+            // WORKSHOP: cacheDir/workshop/... (case-insensitive)
+            trie.add(new RootTrie.Root(normalizedCacheDir + "/workshop/", FilePrefix.WMOD, false, 1));
+        } else {
+            complete = false;
+        }
+
+        // STEAM_MOD: any path from GetInstalledItemFolders()
+        // Complete only once folders were actually returned: before Steam is initialized the
+        // instance is null, or the call returns null or nothing
+        String[] steamFolders = SteamWorkshop.instance != null ? SteamWorkshop.instance.GetInstalledItemFolders() : null;
+        if (steamFolders != null && steamFolders.length > 0) {
+            for (String steamFolder : steamFolders) {
+                if (steamFolder != null && !steamFolder.isEmpty()) {
+                    trie.add(new RootTrie.Root(steamFolder.replace('\\', '/'), FilePrefix.SMOD, true, 2));
                 }
             }
-        } catch (Exception e) {
-            // If anything goes wrong, just return the original fname
+        } else {
+            complete = false;
         }
-        return fname;
+
+        // GAME: the game root directory, without a trailing separator
+        if (ZomboidFileSystem.instance.base != null && ZomboidFileSystem.instance.base.canonicalFile != null) {
+            String normalizedRoot = ZomboidFileSystem.instance.base.canonicalFile.getAbsolutePath().replace('\\', '/');
+            if (normalizedRoot.endsWith("/")) {
+                normalizedRoot = normalizedRoot.substring(0, normalizedRoot.length() - 1);
+            }
+            if (!normalizedRoot.isEmpty()) {
+                trie.add(new RootTrie.Root(normalizedRoot, FilePrefix.GAME, true, 3));
+            }
+        } else {
+            complete = false;
+        }
+
+        trie.complete = complete;
+        return trie;
     }
-    
+
     // Clear cache if needed (e.g., when mods are reloaded)
-    public static void clearCache() {
+    // Also drops the compiled roots, so newly installed mods are picked up
+    public static synchronized void clearCache() {
         filenameCache.clear();
+        roots = null;
+        rootRebuilds = 0;
     }
     
     // Get cache size for debugging
@@ -4,68 +4,86 @@ import zombie.core.Core;
 import zombie.core.SpriteRenderer;
 import zombie.ui.TextManager;
 import zombie.ui.UIFont;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 public class PerfRenderer {
     private static long lastUpdateTime = 0;
-    private static List<FormattedCall> cachedTopCalls = new java.util.ArrayList<>();
-    private static long cachedWindowDurationMS = 0;
     private static int allTimeMaxWidth = 0;
     private static int maxPrefixWidth = 0; // Track maximum prefix column width
     
-    // Cached expensive-to-compute values (only recalculate when data or settings change)
-    private static int cachedTopN = 0;
-    private static int cachedX0 = Integer.MIN_VALUE;
-    private static int cachedY0 = Integer.MIN_VALUE;
-    private static int cachedScreenHeight = 0;
-    private static String cachedLongestLine = "";
-    
     // Cached rendering values (computed only when shouldUpdate is true)
     private static int cachedLineSpacing = 0;
     private static int cachedTotalHeight = 0;
     private static int cachedCurrentY = 0;
     private static int cachedBackgroundWidth = 0;
     private static int cachedBackgroundX = 0;
-    
-    // Pre-rendered line cache with colors
-    private static class CachedLine {
-        String text;
+
+    // Sparklines: each row's recent history downsampled into SPARKLINE_BINS bars, drawn right of the text
+    private static final int SPARKLINE_BINS = 30;
+    private static final int SPARKLINE_BAR_WIDTH = 2;
+    private static final int SPARKLINE_GAP = 8; // Between the longest text line and the sparklines
+    // Bars computed on update and replayed every frame: x, y, height per bar, plus the line whose color it uses
+    private static float[] sparkRects = new float[0];
+    private static int[] sparkLines = new int[0];
+    private static int sparkCount = 0;
+
+    // Reusable OSD line: text is rebuilt in `sb`, and only turned into a new String when it
+    // differs from the previous one, so an unchanged row costs no allocation
+    private static class Line {
+        final StringBuilder sb = new StringBuilder(128);
+        String text = "";
         double r, g, b; // RGB color values
-        
-        CachedLine(String text, double r, double g, double b) {
-            this.text = text;
+
+        void commit(double r, double g, double b) {
+            if (!text.contentEquals(sb)) {
+                text = sb.toString();
+            }
             this.r = r;
             this.g = g;
             this.b = b;
         }
     }
-    private static List<CachedLine> cachedLines = new java.util.ArrayList<>();
-    
-    // Helper class to hold formatted call data with color info
-    private static class FormattedCall {
-        String timeStr;
-        String countStr;
-        String prefixStr;
-        String pathStr;
-        double r, g, b; // RGB color values
-        
-        FormattedCall(String timeStr, String countStr, String prefixStr, String pathStr, double r, double g, double b) {
-            this.timeStr = timeStr;
-            this.countStr = countStr;
+    private static final List<Line> lines = new ArrayList<>(); // Pool; the first lineCount are drawn
+    private static int lineCount = 0;
+
+    // Per-row values collected before the prefix column width is known
+    private static class Row {
+        double totalMs;
+        long count;
+        double p50, p95, p99;
+        DisplayParts parts;
+        int line;
+        final long[] history = new long[SPARKLINE_BINS]; // Only filled when sparklines are shown
+    }
+    private static final List<Row> rows = new ArrayList<>();
+
+    // Split of a relativePath into the prefix column and the displayed path, cached by path
+    private static class DisplayParts {
+        final FilePrefix prefix;
+        final String prefixStr;
+        final String pathStr;
+        final boolean showLine;
+
+        DisplayParts(FilePrefix prefix, String prefixStr, String pathStr, boolean showLine) {
+            this.prefix = prefix;
             this.prefixStr = prefixStr;
             this.pathStr = pathStr;
-            this.r = r;
-            this.g = g;
-            this.b = b;
-        }
-        
-        String getFullLine(int prefixWidth) {
-            // Columns: time (variable, right-aligned), count (5 chars, right-aligned), 
-            // prefix (variable width, left-aligned), path (left-aligned, variable width)
-            String formattedPrefix = String.format("%-" + prefixWidth + "s", prefixStr);
-            return timeStr + "  " + countStr + "  " + formattedPrefix + " " + pathStr;
+            this.showLine = showLine;
         }
     }
+    private static final int MAX_CACHE_SIZE = 2048; // Caches are simply dropped when they grow past this
+    private static final HashMap<String, DisplayParts> displayPartsCache = new HashMap<>();
+
+    // MeasureStringX is expensive. OSD lines differ from refresh to refresh mostly in their
+    // numbers, so widths are cached by a digit template of the line (every digit as '0'),
+    // in a small direct-mapped table keyed by a 64-bit hash of the template and its length
+    private static final int WIDTH_CACHE_SIZE = 256; // Power of two
+    private static final long[] widthKeys = new long[WIDTH_CACHE_SIZE]; // 0 = empty
+    private static final int[] widths = new int[WIDTH_CACHE_SIZE];
+    private static int measuredTextHeight = -1; // The OSD font is fixed
+    private static final FrameStats.Summary frameSummary = new FrameStats.Summary();
 
     public static void render() {
         // Don't render if OSD is disabled
@@ -73,15 +91,14 @@ public class PerfRenderer {
             return;
         }
 
+        // Always timed: OverheadGovernor counts it against the overhead budget
+        long renderStartNs = System.nanoTime();
+        renderInternal();
+        long renderDurationNs = System.nanoTime() - renderStartNs;
+        OverheadGovernor.addRenderNs(renderDurationNs);
+
         if (PerformanceMonitor.trackInternalPerformance) {
-            long renderStartNs = System.nanoTime();
-            renderInternal();
-            long renderDurationNs = System.nanoTime() - renderStartNs;
-            
-            int slowKey = -2;
-            PerformanceMonitor.recordInternalPerformance(slowKey, renderStartNs, renderDurationNs);
-        } else {
-            renderInternal();
+            PerformanceMonitor.recordInternalPerformance(FunctionRegistry.RENDER_ID, renderStartNs, renderDurationNs);
         }
     }
     
@@ -98,7 +115,7 @@ public class PerfRenderer {
 
         // Check if we need to update based on update interval
         long currentTime = System.nanoTime();
-        long updateIntervalNS = ZBLuaPerfMon.osdUpdateIntervalMS * 1_000_000L; // Convert ms to ns
+        long updateIntervalNS = OverheadGovernor.getOSDUpdateIntervalMS() * 1_000_000L; // Convert ms to ns
         boolean shouldUpdate = ((currentTime - lastUpdateTime) >= updateIntervalNS) && !ZBLuaPerfMon.osdFrozen;
 
         // Get parameters from ZBLuaPerfMon
@@ -114,43 +131,76 @@ public class PerfRenderer {
 
         // Update cached data only when update interval has elapsed
         if (shouldUpdate) {
-            cachedTopCalls = getTopCalls(topN, windowDurationMS);
-            cachedWindowDurationMS = windowDurationMS;
             lastUpdateTime = currentTime;
-            
-            // Store settings for reference
-            cachedTopN = topN;
-            cachedX0 = x0;
-            cachedY0 = y0;
-            cachedScreenHeight = scrH;
-
-            // Pre-format all lines with colors and find longest (expensive operations)
-            String header = "Top " + topN + " Lua Calls (last " + (windowDurationMS / 1000) + "s):";
-            cachedLines.clear();
-            // Add header as first line (white color)
-            cachedLines.add(new CachedLine(header, 1.0, 1.0, 1.0));
-            cachedLongestLine = header;
-            // Add formatted call lines with their colors
-            for (FormattedCall call : cachedTopCalls) {
-                String line = call.getFullLine(maxPrefixWidth);
-                cachedLines.add(new CachedLine(line, call.r, call.g, call.b));
-                if (line.length() > cachedLongestLine.length()) {
-                    cachedLongestLine = line;
+            lineCount = 0;
+
+            // Header (white)
+            StringBuilder header = nextLine();
+            header.append("Top ").append(topN).append(" Lua ");
+            switch (ZBLuaPerfMon.groupBy) {
+                case MOD:    header.append("Mods"); break;
+                case PREFIX: header.append("Prefixes"); break;
+                case EVENT:  header.append("Events"); break;
+                default:     header.append("Calls"); break;
+            }
+            header.append(" (last ").append(windowDurationMS / 1000).append('s');
+            if (ZBLuaPerfMon.rankBySelfTime) {
+                header.append(", self time");
+            }
+            if (Patch_LuaCaller.samplingRate > 1) {
+                header.append(", sampled 1/").append(Patch_LuaCaller.samplingRate);
+            }
+            if (ZBLuaPerfMon.governorEnabled) {
+                // Current governor mode, so it's visible when settings are being overridden
+                header.append(", overhead ");
+                TextFormat.appendFixed(header, OverheadGovernor.getOverheadPercent(), 1, 0).append("% ");
+                header.append(OverheadGovernor.getModeName());
+            }
+            header.append("):");
+            if (ZBLuaPerfMon.osdShowPercentiles) {
+                header.append(" [total, count, p50/p95/p99 ms]");
+            }
+            commitLine(1.0, 1.0, 1.0);
+
+            int extraLines = 0;
+            if (ZBLuaPerfMon.osdShowFrameStats) {
+                // Per-frame Lua time (light cyan), since per-frame stalls are what players feel
+                FrameStats.summarize(windowDurationMS, frameSummary).appendTo(nextLine());
+                commitLine(0.6, 1.0, 1.0);
+                extraLines++;
+            }
+
+            int rowCount = collectRows(topN, windowDurationMS);
+            for (int i = 0; i < rowCount; i++) {
+                formatRow(rows.get(i));
+            }
+
+            // Measure the longest line (by characters) as the background width
+            String longestLine = "";
+            for (int i = 0; i < lineCount; i++) {
+                String text = lines.get(i).text;
+                if (text.length() > longestLine.length()) {
+                    longestLine = text;
                 }
             }
-            // Measure longest line width (expensive operation)
-            int maxWidth = textMgr.MeasureStringX(font, cachedLongestLine);
+            int maxWidth = measure(textMgr, font, longestLine);
             if (maxWidth > allTimeMaxWidth) {
                 allTimeMaxWidth = maxWidth;
             }
             
             // Compute and cache all rendering values
-            int textHeight = textMgr.MeasureStringY(font, "XXX");
+            int textHeight = measureHeight(textMgr, font);
             cachedLineSpacing = textHeight + 2;
-            cachedTotalHeight = (topN + 1) * cachedLineSpacing;
+            cachedTotalHeight = (topN + 1 + extraLines) * cachedLineSpacing;
             cachedCurrentY = (y0 < 0) ? scrH + y0 - cachedTotalHeight + 1 : y0;
             cachedBackgroundWidth = allTimeMaxWidth + 10;
             cachedBackgroundX = x0 - 5;
+
+            sparkCount = 0;
+            if (ZBLuaPerfMon.osdShowSparklines) {
+                cachedBackgroundWidth += SPARKLINE_GAP + SPARKLINE_BINS * SPARKLINE_BAR_WIDTH;
+                buildSparklines(rowCount, 1 + extraLines, x0 + allTimeMaxWidth + SPARKLINE_GAP, textHeight);
+            }
         }
 
         // Draw dark background if opacity > 0
@@ -160,100 +210,219 @@ public class PerfRenderer {
 
         // Draw all pre-rendered lines from cache
         int drawY = cachedCurrentY;
-        for (CachedLine cachedLine : cachedLines) {
-            textMgr.DrawString(font, x0, drawY, cachedLine.text, cachedLine.r, cachedLine.g, cachedLine.b, alpha);
+        for (int i = 0; i < lineCount; i++) {
+            Line line = lines.get(i);
+            textMgr.DrawString(font, x0, drawY, line.text, line.r, line.g, line.b, alpha);
             drawY += cachedLineSpacing;
         }
+
+        // All bars in one pass, no per-frame computation
+        for (int i = 0; i < sparkCount; i++) {
+            Line line = lines.get(sparkLines[i]);
+            int off = i * 3;
+            SpriteRenderer.instance.renderRect((int) sparkRects[off], (int) sparkRects[off + 1], SPARKLINE_BAR_WIDTH, (int) sparkRects[off + 2],
+                (float) line.r, (float) line.g, (float) line.b, alpha);
+        }
     }
-        
-    // Get top N calls for rendering (returns a list of formatted call data)
-    public static java.util.List<FormattedCall> getTopCalls(int topN, long windowDurationMS) {
-        java.util.List<FormattedCall> result = new java.util.ArrayList<>();
-        double minTimeMS = ZBLuaPerfMon.osdMinTimeMS;
-        int[] currentMaxPrefixWidth = {0}; // Use array to allow modification in lambda
-        
-        PerformanceMonitor.getTopEntries(windowDurationMS, topN)
-            .forEach(entry -> {
-                FileInfo info = entry.info;
-                TimingStats.WindowStats windowStats = entry.windowStats;
-                double totalMs = windowStats.getTotalSumMs();
-                
-                // Filter out entries below minimum time threshold
-                if (totalMs < minTimeMS) {
-                    return;
-                }
-                
-                // Format time: if > 100ms, convert to seconds with 2 decimal places, otherwise show as ms with 1 decimal
-                // Right-aligned in 8 character column
-                String timeStr = String.format("%8.1fms", totalMs);
-                double r, g, b;
-                if (totalMs > 500.0) {
-                    // > 500ms: slight red
-                    r = 1.0;
-                    g = 0.6;
-                    b = 0.6;
-                } else if (totalMs > 100.0) {
-                    // > 100ms: slight yellow
-                    r = 1.0;
-                    g = 1.0;
-                    b = 0.6;
-                } else {
-                    // <= 100ms: white
-                    r = 1.0;
-                    g = 1.0;
-                    b = 1.0;
-                }
-                
-                // Format count (right-aligned, 5 character column)
-                String countStr = String.format("%5d", windowStats.count);
-                
-                // Extract first folder from path for LMOD/SMOD/WORKSHOP, otherwise use prefix
-                FilePrefix prefix = info.prefix != null ? info.prefix : FilePrefix.UNK;
-                String pathToDisplay = info.relativePath;
-                String prefixStr;
-                
-                if (prefix == FilePrefix.INTERNAL) {
-                    prefixStr = "LuaPerfMon";
-                } else if (prefix == FilePrefix.LMOD || prefix == FilePrefix.SMOD || prefix == FilePrefix.WMOD) {
-                    // Extract first folder from path
-                    String normalizedPath = pathToDisplay.replace('\\', '/');
-                    int firstSlash = normalizedPath.indexOf('/');
-                    if (firstSlash > 0) {
-                        String firstFolder = normalizedPath.substring(0, firstSlash);
-                        // Remove first folder from path
-                        pathToDisplay = normalizedPath.substring(firstSlash + 1);
-                        prefixStr = firstFolder;
-                    } else {
-                        prefixStr = prefix.name();
-                    }
-                } else {
-                    prefixStr = prefix.name();
-                }
-                
-                // Update max prefix width for this batch
-                int prefixLen = prefixStr.length();
-                if (prefixLen > currentMaxPrefixWidth[0]) {
-                    currentMaxPrefixWidth[0] = prefixLen;
+
+    // Lay out one bar per non-empty history bin, each row scaled to its own peak
+    private static void buildSparklines(int rowCount, int firstRowLine, int x, int maxHeight) {
+        int needed = rowCount * SPARKLINE_BINS;
+        if (sparkLines.length < needed) {
+            sparkRects = new float[needed * 3];
+            sparkLines = new int[needed];
+        }
+        for (int i = 0; i < rowCount; i++) {
+            long[] history = rows.get(i).history;
+            long peak = 0;
+            for (long value : history) {
+                if (value > peak) {
+                    peak = value;
                 }
-                
-                // Format path (truncate if too long)
-                // Don't show line number for internal performance tracking or when line is 0 and path doesn't look like a file
-                String fileDisplay;
-                if (info.line > 0 || (pathToDisplay.contains("/") || pathToDisplay.contains("\\"))) {
-                    fileDisplay = pathToDisplay + ":" + info.line;
-                } else {
-                    fileDisplay = pathToDisplay;
+            }
+            if (peak == 0) {
+                continue;
+            }
+            int lineIndex = firstRowLine + i;
+            int baseY = cachedCurrentY + lineIndex * cachedLineSpacing + maxHeight;
+            for (int bin = 0; bin < SPARKLINE_BINS; bin++) {
+                if (history[bin] == 0) {
+                    continue;
                 }
-                String pathStr = fileDisplay.length() > 80 ? fileDisplay.substring(0, 77) + "..." : fileDisplay;
-                
-                result.add(new FormattedCall(timeStr, countStr, prefixStr, pathStr, r, g, b));
-            });
-        
+                int height = Math.max(1, (int) (history[bin] * maxHeight / peak));
+                int off = sparkCount * 3;
+                sparkRects[off] = x + bin * SPARKLINE_BAR_WIDTH;
+                sparkRects[off + 1] = baseY - height;
+                sparkRects[off + 2] = height;
+                sparkLines[sparkCount++] = lineIndex;
+            }
+        }
+    }
+
+    // Next pooled line, cleared
+    private static StringBuilder nextLine() {
+        if (lineCount == lines.size()) {
+            lines.add(new Line());
+        }
+        StringBuilder sb = lines.get(lineCount).sb;
+        sb.setLength(0);
+        return sb;
+    }
+
+    private static void commitLine(double r, double g, double b) {
+        lines.get(lineCount).commit(r, g, b);
+        lineCount++;
+    }
+
+    // Fill the Row pool with the top N entries above osdMinTimeMS; returns how many
+    private static int collectRows(int topN, long windowDurationMS) {
+        double minTimeMS = ZBLuaPerfMon.osdMinTimeMS;
+        int currentMaxPrefixWidth = 0;
+        int count = 0;
+
+        for (PerformanceMonitor.StatsEntryWithWindow entry : PerformanceMonitor.getTopRows(TopKIndex.OSD, windowDurationMS, topN)) {
+            FileInfo info = entry.info;
+            TimingStats.WindowStats windowStats = entry.windowStats;
+            double totalMs = ZBLuaPerfMon.rankBySelfTime ? windowStats.getSelfSumMs() : windowStats.getTotalSumMs();
+
+            // Filter out entries below minimum time threshold
+            if (totalMs < minTimeMS) {
+                continue;
+            }
+
+            if (count == rows.size()) {
+                rows.add(new Row());
+            }
+            Row row = rows.get(count++);
+            row.totalMs = totalMs;
+            row.count = windowStats.count;
+            if (ZBLuaPerfMon.osdShowPercentiles) {
+                row.p50 = windowStats.getPercentileMs(50);
+                row.p95 = windowStats.getPercentileMs(95);
+                row.p99 = windowStats.getPercentileMs(99);
+            }
+            row.parts = getDisplayParts(info);
+            row.line = info.line;
+            if (ZBLuaPerfMon.osdShowSparklines) {
+                java.util.Arrays.fill(row.history, 0);
+                entry.collectHistory(ZBLuaPerfMon.osdSparklineSeconds * 1000L, row.history, ZBLuaPerfMon.rankBySelfTime);
+            }
+
+            // Update max prefix width for this batch
+            int prefixLen = row.parts.prefixStr.length();
+            if (prefixLen > currentMaxPrefixWidth) {
+                currentMaxPrefixWidth = prefixLen;
+            }
+        }
+
         // Update global max prefix width (remember longest size)
-        if (currentMaxPrefixWidth[0] > maxPrefixWidth) {
-            maxPrefixWidth = currentMaxPrefixWidth[0];
+        if (currentMaxPrefixWidth > maxPrefixWidth) {
+            maxPrefixWidth = currentMaxPrefixWidth;
+        }
+        return count;
+    }
+
+    // Columns: time (right-aligned), count (5 chars, right-aligned), optional p50/p95/p99,
+    // prefix (left-aligned, padded to the widest seen), path (truncated to 80 chars)
+    private static void formatRow(Row row) {
+        double totalMs = row.totalMs;
+        double r, g, b;
+        if (totalMs > 500.0) {
+            // > 500ms: slight red
+            r = 1.0;
+            g = 0.6;
+            b = 0.6;
+        } else if (totalMs > 100.0) {
+            // > 100ms: slight yellow
+            r = 1.0;
+            g = 1.0;
+            b = 0.6;
+        } else {
+            // <= 100ms: white
+            r = 1.0;
+            g = 1.0;
+            b = 1.0;
+        }
+
+        StringBuilder sb = nextLine();
+        TextFormat.appendFixed(sb, totalMs, 1, 8).append("ms  ");
+        TextFormat.appendInt(sb, row.count, 5).append("  ");
+        if (ZBLuaPerfMon.osdShowPercentiles) {
+            TextFormat.appendFixed(sb, row.p50, 2, 6).append('/');
+            TextFormat.appendFixed(sb, row.p95, 2, 6).append('/');
+            TextFormat.appendFixed(sb, row.p99, 2, 6).append("  ");
+        }
+        TextFormat.appendLeft(sb, row.parts.prefixStr, maxPrefixWidth).append(' ');
+
+        int pathStart = sb.length();
+        sb.append(row.parts.pathStr);
+        if (row.parts.showLine) {
+            sb.append(':').append(row.line);
+        }
+        if (sb.length() - pathStart > 80) {
+            sb.setLength(pathStart + 77);
+            sb.append("...");
+        }
+        commitLine(r, g, b);
+    }
+
+    private static DisplayParts getDisplayParts(FileInfo info) {
+        DisplayParts parts = displayPartsCache.get(info.relativePath);
+        if (parts != null && parts.prefix == info.prefix) {
+            return parts;
+        }
+
+        // Mod folder for LMOD/SMOD/WORKSHOP (dropped from the path), otherwise the prefix
+        String pathToDisplay = info.relativePath;
+        String prefixStr = info.getModName();
+        if (info.prefix == FilePrefix.LMOD || info.prefix == FilePrefix.SMOD || info.prefix == FilePrefix.WMOD) {
+            String normalizedPath = pathToDisplay.replace('\\', '/');
+            int firstSlash = normalizedPath.indexOf('/');
+            if (firstSlash > 0) {
+                pathToDisplay = normalizedPath.substring(firstSlash + 1);
+            }
+        }
+        // Don't show line number for internal performance tracking or when line is 0 and path doesn't look like a file
+        boolean showLine = info.line > 0 || (pathToDisplay.contains("/") || pathToDisplay.contains("\\"));
+
+        if (displayPartsCache.size() >= MAX_CACHE_SIZE) {
+            displayPartsCache.clear();
+        }
+        parts = new DisplayParts(info.prefix, prefixStr, pathToDisplay, showLine);
+        displayPartsCache.put(info.relativePath, parts);
+        return parts;
+    }
+
+    private static int measure(TextManager textMgr, UIFont font, String text) {
+        int length = text.length();
+        long key = length;
+        for (int i = 0; i < length; i++) {
+            char ch = text.charAt(i);
+            key = key * 0x100000001B3L + (ch >= '0' && ch <= '9' ? '0' : ch);
+        }
+        key ^= key >>> 29;
+        if (key == 0) {
+            key = 1;
+        }
+        int slot = (int) (key ^ (key >>> 32)) & (WIDTH_CACHE_SIZE - 1);
+        if (widthKeys[slot] != key) {
+            // Measure the template itself, so a key always maps to the same width
+            char[] template = text.toCharArray();
+            for (int i = 0; i < length; i++) {
+                if (template[i] >= '0' && template[i] <= '9') {
+                    template[i] = '0';
+                }
+            }
+            widths[slot] = textMgr.MeasureStringX(font, new String(template));
+            widthKeys[slot] = key;
+        }
+        return widths[slot];
+    }
+
+    private static int measureHeight(TextManager textMgr, UIFont font) {
+        if (measuredTextHeight < 0) {
+            measuredTextHeight = textMgr.MeasureStringY(font, "XXX");
         }
-        
-        return result;
+        return measuredTextHeight;
     }
 }
@@ -1,152 +1,77 @@
 package me.zed_0xff.zb_lua_perf_mon;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.Set;
-
 public class PerformanceMonitor {
-    public static final ConcurrentHashMap<Integer, TimingStats> statsMap = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Integer, String> slowKeyToName = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<String, Integer> nameToSlowKey = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Integer, Integer> fastKeyToSlowKey = new ConcurrentHashMap<>();
-    public static final int WINDOW_SIZE = 1000; // Keep last 1000 samples per callee
     public static int logIntervalSeconds = 5; // Log stats every N seconds (default 5)
     public static boolean logEnabled = false;
     public static boolean trackInternalPerformance = false;
     
-    private static volatile long lastLogTime = System.nanoTime();
+    private static volatile long lastLogTick = 0;
+    private static volatile long statsStartNanos = System.nanoTime(); // Last reset()
     private static final Object logLock = new Object();
-    // Track active keys to avoid iterating all entries
-    private static final ConcurrentHashMap<Integer, Long> activeKeys = new ConcurrentHashMap<>();
-    private static final long ACTIVE_KEY_TTL_NS = 60_000_000_000L; // 60 seconds in nanoseconds
-    // Cache of excluded slowKeys (GAME entries) to avoid repeated path parsing
-    private static final Set<Integer> excludedSlowKeys = ConcurrentHashMap.newKeySet();
-
-    // Initialize internal performance tracking entries
-    private static void initInternalPerformanceTracking() {
-        String recordTimingName = "LuaPerfMon.recordTiming()";
-        slowKeyToName.put(-1, recordTimingName);
-        nameToSlowKey.put(recordTimingName, -1);
-        
-        String renderName = "LuaPerfMon.render()";
-        slowKeyToName.put(-2, renderName);
-        nameToSlowKey.put(renderName, -2);
-    }
 
-    // Static initializer to set up internal performance tracking entry
     static {
-        initInternalPerformanceTracking();
+        HookOverhead.startCalibration();
+        AsyncAggregator.start(); // Also drives EpochClock when there are no UI frames
     }
     
     public static void reset() {
-        statsMap.clear();
-        activeKeys.clear();
-        fastKeyToSlowKey.clear();
-        slowKeyToName.clear();
-        nameToSlowKey.clear();
-        excludedSlowKeys.clear();
-        lastLogTime = System.nanoTime();
-
-        initInternalPerformanceTracking();
+        TraceRecorder.stop(); // Its string table needs the ids about to be cleared
+        FunctionRegistry.clear();
+        TopKIndex.clear(); // After the registry, so samples of old entries can't be offered back in between
+        PathParser.clearCache(); // Mods may have changed
+        CallPathTree.clearAll();
+        FrameStats.clear();
+        EventStats.clear();
+        OverheadGovernor.reset();
+        lastLogTick = EpochClock.now();
+        statsStartNanos = System.nanoTime();
     }
-    
-    public static void clearExcludedSlowKeys() {
-        excludedSlowKeys.clear();
+
+    // How long stats have been accumulating since the last reset()
+    public static long getStatsAgeMS() {
+        return (System.nanoTime() - statsStartNanos) / 1_000_000;
     }
     
-    // Record internal performance tracking (for render, etc.)
-    public static void recordInternalPerformance(int slowKey, long startTimeNs, long durationNanos) {
-        activeKeys.put(slowKey, startTimeNs);
-        statsMap.computeIfAbsent(slowKey, k -> new TimingStats(WINDOW_SIZE)).addSample(startTimeNs, durationNanos);
+    // Record internal performance tracking (for render, etc.); id is a FunctionRegistry internal id
+    // Always recorded synchronously, into the calling thread's stripe
+    public static void recordInternalPerformance(int id, long startTimeNs, long durationNanos) {
+        addSample(FunctionRegistry.get(id), ThreadState.get().threadIndex, startTimeNs, durationNanos, durationNanos, 1);
     }
 
-    public static void recordTiming(Object funcObj, long startTimeNs, long durationNanos) {
-        if (trackInternalPerformance) {
-            long recordStartNs = System.nanoTime();
-            recordTimingInternal(funcObj, startTimeNs, durationNanos);
-            long recordDurationNs = System.nanoTime() - recordStartNs;
-
-            int slowKey = -1;
-            recordInternalPerformance(slowKey, recordStartNs, recordDurationNs);
-        } else {
-            recordTimingInternal(funcObj, startTimeNs, durationNanos);
-        }
+    // Record `calls` calls costing durationNanos each as one sample
+    public static void recordInternalPerformance(int id, long startTimeNs, long durationNanos, int calls) {
+        addSample(FunctionRegistry.get(id), ThreadState.get().threadIndex, startTimeNs, durationNanos, durationNanos, calls);
     }
 
-    private static void recordTimingInternal(Object funcObj, long startTimeNs, long durationNanos) {
-        int slowKey = 0;
-        String name;
-        
-        if (funcObj != null) {
-            int fastKey = funcObj.hashCode(); // hash of function object, fast, but not unique
-            slowKey = fastKeyToSlowKey.computeIfAbsent(fastKey, k -> {
-                String name_ = getObjName(funcObj);
-                int slowKey_ = name_.hashCode(); // hash of function "filename:line" - slower, but unique
-                
-                // Check if this is a GAME entry and should be excluded (only check once per unique function)
-                if (ZBLuaPerfMon.excludeGameEntries) {
-                    FileInfo info = PathParser.getFileInfo(name_);
-                    if (info.prefix == FilePrefix.GAME) {
-                        // Mark this slowKey as excluded and return a sentinel value
-                        excludedSlowKeys.add(slowKey_);
-                        return slowKey_;
-                    }
-                }
-                
-                slowKeyToName.put(slowKey_, name_);
-                nameToSlowKey.put(name_, slowKey_);
-                return slowKey_;
-            });
-            name = slowKeyToName.get(slowKey);
-        } else {
-            // funcObj is null, use key 0 and name "(null)"
-            slowKey = 0;
-            name = "(null)";
-            // Ensure the name is in the map
-            if (!slowKeyToName.containsKey(slowKey)) {
-                slowKeyToName.put(slowKey, name);
-                nameToSlowKey.put(name, slowKey);
-            }
+    // weight: how many calls this sample stands for (the sampling rate, 1 when every call is recorded)
+    // thread: ThreadState.threadIndex of the Lua thread that made the call
+    // eventId: EventStats id of the Lua event being dispatched at the time, or EventStats.NONE
+    // Hook overhead is reported per frame by FrameStats.closeFrame() as the FunctionRegistry.HOOKS_ID entry
+    public static void recordTiming(Object funcObj, long startTimeNs, long durationNanos, long selfNanos, int weight, int thread, int eventId) {
+        int id = FunctionRegistry.idFor(funcObj);
+        FunctionRegistry.Entry entry = FunctionRegistry.get(id);
+        if (entry == null) {
+            return; // Registry cleared by a concurrent reset()
         }
         
-        // Skip recording if this slowKey is excluded
-        if (excludedSlowKeys.contains(slowKey)) {
+        // Skip recording if this is an excluded GAME entry
+        if (ZBLuaPerfMon.excludeGameEntries && entry.info.prefix == FilePrefix.GAME) {
             return; // Don't track GAME entries at all
         }
         
-        // Get function name and skip all processing unless it contains "Gauges"
-        String functionName = slowKeyToName.get(slowKey);
-        // if (functionName == null || !functionName.contains("Gauges.lua:70")) {
-        //     return; // Skip all processing for non-Gauges functions
-        // }
-        
-        // DEBUG: Log when recording "Gauges" calls
-        // DebugLogger.log(String.format("recordTiming: %s, duration=%.3fms, slowKey=%d",
-        //     functionName, durationNanos / 1_000_000.0, slowKey));
-        
-        activeKeys.put(slowKey, startTimeNs);
-        statsMap.computeIfAbsent(slowKey, k -> new TimingStats(WINDOW_SIZE)).addSample(startTimeNs, durationNanos);
-    }
-    
-    // Fast key generation - just uses raw filename and line, no path parsing
-    private static String getObjName(Object funcObj) {
-        if (funcObj instanceof se.krka.kahlua.vm.LuaClosure) {
-            se.krka.kahlua.vm.LuaClosure closure = (se.krka.kahlua.vm.LuaClosure) funcObj;
-            if (closure.prototype != null) {
-                String fname = closure.prototype.filename != null 
-                    ? closure.prototype.filename 
-                    : closure.prototype.file != null 
-                        ? closure.prototype.file 
-                        : "unknown";
-                int line = closure.prototype.lines != null && closure.prototype.lines.length > 0
-                    ? closure.prototype.lines[0]
-                    : 0;
-                return fname + ":" + line;
-            }
-        }
-        if (funcObj != null) {
-            return "(" + funcObj.getClass().getSimpleName() + ")" + funcObj.toString();
+        TraceRecorder.recordCall(id, thread, startTimeNs, durationNanos, selfNanos, weight);
+        addSample(entry, thread, startTimeNs, durationNanos, selfNanos, weight);
+        GroupStats.addSample(entry, thread, startTimeNs, durationNanos, selfNanos, weight);
+        int modId = entry.modId;
+        if (eventId != EventStats.NONE) {
+            EventStats.addSample(eventId, modId, thread, startTimeNs, selfNanos, weight);
         }
-        return "null";
+        FrameStats.attribute(modId, startTimeNs, selfNanos * weight);
+    }
+
+    private static void addSample(FunctionRegistry.Entry entry, int thread, long startTimeNs, long durationNanos, long selfNanos, int weight) {
+        long recentSumNs = entry.stats.addSample(thread, startTimeNs, durationNanos, selfNanos, weight);
+        TopKIndex.offer(entry.id, entry.stats, recentSumNs);
     }
     
     public static void checkAndLogStatistics() {
@@ -160,43 +85,68 @@ public class PerformanceMonitor {
             return;
         }
         
-        long currentTime = System.nanoTime();
-        long timeSinceLastLog = currentTime - lastLogTime;
-        long logIntervalNs = logIntervalSeconds * 1_000_000_000L; // Convert seconds to nanoseconds
+        // Only reads the shared clock: this runs per sample in sync mode, and the UI frame hook
+        // and the aggregator thread keep it moving (the latter also on dedicated servers)
+        long currentTick = EpochClock.now();
+        long logIntervalTicks = logIntervalSeconds * 1000L / EpochClock.TICK_MS;
         
         // Quick check without synchronization for performance
-        if (timeSinceLastLog >= logIntervalNs) {
-            // Synchronize to ensure only one thread logs
+        if (currentTick - lastLogTick >= logIntervalTicks) {
+            // Synchronize to ensure only one thread requests the log
             synchronized (logLock) {
                 // Double-check after acquiring lock
-                currentTime = System.nanoTime();
-                if (currentTime - lastLogTime >= logIntervalNs) {
-                    lastLogTime = currentTime;
-                    logStatistics();
+                if (currentTick - lastLogTick >= logIntervalTicks) {
+                    lastLogTick = currentTick;
+                    // Formatting and I/O happen on the writer thread, not here on the hot path
+                    StatsLogWriter.requestLog();
                 }
             }
         }
     }
     
-    private static void logStatistics() {
-        // Calculate max window: WINDOW_SIZE buckets * 50ms per bucket
-        long maxWindowMS = (long) WINDOW_SIZE * 50L;
+    // Runs on the StatsLogWriter thread
+    static void logStatistics() {
+        // Longest window the rollup tiers can answer
+        long maxWindowMS = TimingStats.MAX_WINDOW_MS;
         // Use the smaller of max window or log interval, but ensure at least 1 second
         long windowDurationMS = Math.min(maxWindowMS, (long) logIntervalSeconds * 1000L);
         // Ensure minimum window of 1 second to catch recent data
         if (windowDurationMS < 1000) {
             windowDurationMS = 1000;
         }
-        
-        System.out.println("[ZBLuaPerfMon] ========== Statistics (top 50 by total time in last " + windowDurationMS + "ms window) ==========");
+
+        java.util.List<StatsEntryWithWindow> rows = getTopRows(TopKIndex.LOG, windowDurationMS, 50);
+        if (StatsLogWriter.logConsole) {
+            printStatistics(windowDurationMS, rows);
+        }
+        StatsLogWriter.writeRows(windowDurationMS, rows);
+    }
+
+    private static void printStatistics(long windowDurationMS, java.util.List<StatsEntryWithWindow> rows) {
+        String rankedBy = ZBLuaPerfMon.rankBySelfTime ? "self" : "total";
+        String sampling = Patch_LuaCaller.samplingRate > 1 ? ", sampled 1/" + Patch_LuaCaller.samplingRate : "";
+        long dropped = AsyncAggregator.getDroppedSamples();
+        String drops = dropped > 0 ? ", " + dropped + " samples dropped" : "";
+        long late = TimingStats.getLateHistogramCalls();
+        drops += late > 0 ? ", " + late + " late calls not in percentiles" : "";
+        String rowKind = ZBLuaPerfMon.groupBy == GroupBy.FUNCTION ? "" : " " + ZBLuaPerfMon.groupBy.name().toLowerCase() + "s";
+        System.out.println("[ZBLuaPerfMon] ========== Statistics (top 50" + rowKind + " by " + rankedBy + " time in last " + windowDurationMS + "ms window" + sampling + drops + ") ==========");
+        FrameStats.Summary frames = FrameStats.summarize(windowDurationMS);
+        if (frames.frames > 0) {
+            System.out.println("[ZBLuaPerfMon] " + frames.format());
+        }
+        if (HookOverhead.isCalibrated()) {
+            System.out.println("[ZBLuaPerfMon] Hook overhead: " + HookOverhead.getCallNs() + "ns per call"
+                + (ZBLuaPerfMon.overheadCompensation ? ", compensated" : ", not compensated")
+                + (ZBLuaPerfMon.governorEnabled ? "; governor: " + OverheadGovernor.getModeName() + " mode" : ""));
+        }
         
         // Print header once
-        System.out.println("[ZBLuaPerfMon] Type      Total(ms)  Avg(ms)    Min(ms)    Max(ms)    Count  File:Line");
-        System.out.println("[ZBLuaPerfMon] ----------------------------------------------------------------------");
+        System.out.println("[ZBLuaPerfMon] Type      Total(ms)  Self(ms)   Avg(ms)    Min(ms)    Max(ms)    P50(ms)    P95(ms)    P99(ms)    Count  File:Line");
+        System.out.println("[ZBLuaPerfMon] ------------------------------------------------------------------------------------------------------------------");
         
-        // Get top entries and print them
-        getTopEntries(windowDurationMS, 50)
-            .forEach(entry -> {
+        // Print the top entries
+        rows.forEach(entry -> {
                 FileInfo info = entry.info;
                 TimingStats.WindowStats windowStats = entry.windowStats;
                 
@@ -214,96 +164,178 @@ public class PerformanceMonitor {
                 
                 // Print just the values (no header labels) using window stats
                 System.out.println(String.format(
-                    "[ZBLuaPerfMon] %s %9.3f  %9.3f  %9.3f  %9.3f  %5d  %s",
+                    "[ZBLuaPerfMon] %s %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %5d  %s",
                     paddedType,
                     windowStats.getTotalSumMs(),
+                    windowStats.getSelfSumMs(),
                     windowStats.getAverageMs(),
                     windowStats.getMinMs(),
                     windowStats.getMaxMs(),
+                    windowStats.getPercentileMs(50),
+                    windowStats.getPercentileMs(95),
+                    windowStats.getPercentileMs(99),
                     windowStats.count,
                     fileDisplay
                 ));
             });
+        if (ZBLuaPerfMon.groupBy == GroupBy.EVENT) {
+            // Which mods the top events' time went to
+            for (int i = 0; i < rows.size() && i < 10; i++) {
+                String breakdown = EventStats.getBreakdown(rows.get(i).info.relativePath, windowDurationMS, 5);
+                if (breakdown != null) {
+                    System.out.println("[ZBLuaPerfMon]   " + breakdown);
+                }
+            }
+        }
         System.out.println("[ZBLuaPerfMon] =============================================================");
     }
     
-    // Resolve simple key (filename:line) to FileInfo with path parsing
-    private static FileInfo resolveKeyToFileInfo(String name, int slowKey) {
-        // Check if this is an internal performance metric (slowKey -1 or -2)
-        if (slowKey == -1 || slowKey == -2) {
-            return new FileInfo(FilePrefix.INTERNAL, name, 0);
+    // "TYPE:path:line" label for a FunctionRegistry id, as used by exports (call paths etc.)
+    public static String getDisplayName(int id) {
+        FunctionRegistry.Entry entry = FunctionRegistry.get(id);
+        if (entry == null) {
+            return "(unknown " + Integer.toHexString(id) + ")";
         }
-        
-        int colonIndex = name.lastIndexOf(':');
-        if (colonIndex > 0) {
-            String fname = name.substring(0, colonIndex);
-            int line = 0;
-            try {
-                line = Integer.parseInt(name.substring(colonIndex + 1));
-            } catch (NumberFormatException e) {
-                // Ignore, line stays 0
-            }
-         
-            // Now do the expensive path parsing
-            FileInfo info = PathParser.getFileInfo(fname);
-            if (info.prefix == null) {
-                info.prefix = FilePrefix.UNK;
-            }
-            return new FileInfo(info.prefix, info.relativePath, line);
+        return getDisplayName(entry.info);
+    }
+
+    public static String getDisplayName(FileInfo info) {
+        String type = info.prefix == FilePrefix.INTERNAL ? "LuaPerfMon" : info.prefix.name();
+        if (info.line > 0 || (info.relativePath.contains("/") || info.relativePath.contains("\\"))) {
+            return type + ":" + info.relativePath + ":" + info.line;
         }
-        return new FileInfo(FilePrefix.UNK, name, 0);
+        return type + ":" + info.relativePath;
+    }
+
+    // Display name for a function object, registering it if needed
+    public static String getDisplayName(Object funcObj) {
+        return getDisplayName(FunctionRegistry.idFor(funcObj));
+    }
+
+    // Parsed FileInfo for a FunctionRegistry id, for exports that need the parts separately
+    public static FileInfo getFileInfo(int id) {
+        FunctionRegistry.Entry entry = FunctionRegistry.get(id);
+        if (entry == null) {
+            return new FileInfo(FilePrefix.UNK, "(unknown " + Integer.toHexString(id) + ")", 0);
+        }
+        return entry.info;
     }
     
     // Helper class for sorting with window stats
+    // A row is either one TimingStats or a GroupStats group
     public static class StatsEntryWithWindow {
         final FileInfo info;
-        final TimingStats stats;
+        final TimingStats stats; // null for group rows
+        final GroupStats.Group group; // null for single-stats rows
         final TimingStats.WindowStats windowStats;
         
-        StatsEntryWithWindow(FileInfo info, TimingStats stats, TimingStats.WindowStats windowStats) {
+        public StatsEntryWithWindow(FileInfo info, TimingStats stats, TimingStats.WindowStats windowStats) {
+            this.info = info;
+            this.stats = stats;
+            this.group = null;
+            this.windowStats = windowStats;
+        }
+
+        public StatsEntryWithWindow(FileInfo info, TimingStats.WindowStats windowStats, GroupStats.Group group) {
             this.info = info;
+            this.stats = null;
+            this.group = group;
+            this.windowStats = windowStats;
+        }
+
+        // Latency histogram over the window, merged across members for group rows
+        public void collectHistogram(long windowDurationMS, long[] out) {
+            if (stats != null) {
+                stats.collectHistogram(windowDurationMS, out);
+            } else {
+                group.collectHistogram(windowDurationMS, out);
+            }
+        }
+
+        // Sparkline history (see TimingStats.collectHistory); group rows are always self time
+        public void collectHistory(long historyMS, long[] out, boolean bySelfTime) {
+            if (stats != null) {
+                stats.collectHistory(historyMS, out, bySelfTime);
+            } else {
+                group.collectHistory(historyMS, out);
+            }
+        }
+    }
+    
+    // A TopKIndex candidate with its window stats
+    private static class RankedCandidate {
+        final int key;
+        final TimingStats stats;
+        final TimingStats.WindowStats windowStats;
+
+        RankedCandidate(int key, TimingStats stats, TimingStats.WindowStats windowStats) {
+            this.key = key;
             this.stats = stats;
             this.windowStats = windowStats;
         }
     }
     
+    // Top rows at the current ZBLuaPerfMon.groupBy level
+    // consumer: TopKIndex.OSD or TopKIndex.LOG, whichever is asking
+    public static java.util.List<StatsEntryWithWindow> getTopRows(int consumer, long windowDurationMS, int limit) {
+        if (ZBLuaPerfMon.groupBy == GroupBy.FUNCTION) {
+            return getTopEntries(consumer, windowDurationMS, limit);
+        }
+        if (ZBLuaPerfMon.groupBy == GroupBy.EVENT) {
+            return EventStats.getTopEntries(windowDurationMS, limit);
+        }
+        return GroupStats.getTopEntries(ZBLuaPerfMon.groupBy, windowDurationMS, limit);
+    }
+
     // Shared method to get top entries - DRY principle
-    // Only iterates through active keys, not all entries
-    public static java.util.List<StatsEntryWithWindow> getTopEntries(long windowDurationMS, int limit) {
-        long currentTimestampNs = System.nanoTime();
-        
-        // Clean up stale active keys
-        activeKeys.entrySet().removeIf(entry -> {
-            long timeSinceActive = currentTimestampNs - entry.getValue();
-            return timeSinceActive > ACTIVE_KEY_TTL_NS;
-        });
-        
-        // Only iterate through active keys, not all entries
-        return activeKeys.keySet().stream()
-            .map(key -> {
-                TimingStats stats = statsMap.get(key);
-                if (stats == null) {
-                    return null;
-                }
-                String name = slowKeyToName.getOrDefault(key, "unknown");
-                
-                // getWindowStats is now read-only, doesn't need timestamp
-                TimingStats.WindowStats windowStats = stats.getWindowStats(windowDurationMS, name);
-                if (windowStats == null) {
-                    return null;
-                }
-                FileInfo info = resolveKeyToFileInfo(name, key);
-                return new StatsEntryWithWindow(info, stats, windowStats);
-            })
-            .filter(entry -> entry != null && entry.windowStats.count > 0)
-            .sorted((a, b) -> {
-                double sumA = a.windowStats.getTotalSumMs();
-                double sumB = b.windowStats.getTotalSumMs();
-                return Double.compare(sumB, sumA);
-            })
-            .limit(limit)
-            .collect(java.util.stream.Collectors.toList());
+    // Only ranks the TopKIndex candidates, not all entries, and collects histograms for the top `limit` only
+    // Ranked by inclusive time, or by self time when ZBLuaPerfMon.rankBySelfTime is set
+    public static java.util.List<StatsEntryWithWindow> getTopEntries(int consumer, long windowDurationMS, int limit) {
+        boolean bySelfTime = ZBLuaPerfMon.rankBySelfTime;
+        TopKIndex.beginRefresh(consumer);
+        java.util.List<RankedCandidate> ranked = new java.util.ArrayList<>();
+        for (java.util.Map.Entry<Integer, TimingStats> candidate : TopKIndex.getCandidates().entrySet()) {
+            int key = candidate.getKey();
+            TimingStats stats = candidate.getValue();
+            FunctionRegistry.Entry entry = FunctionRegistry.get(key);
+            if (entry == null || entry.stats != stats) {
+                // Offered by a sample that was in flight during reset(); its id may belong to another function now
+                TopKIndex.evict(key, stats);
+                continue;
+            }
+
+            TimingStats.WindowStats windowStats = stats.getWindowStats(windowDurationMS, null);
+            if (windowStats == null) {
+                // Went cold for this consumer; it will be re-admitted if it gets hot again
+                TopKIndex.release(consumer, key, stats);
+                continue;
+            }
+            ranked.add(new RankedCandidate(key, stats, windowStats));
+        }
+        ranked.sort((a, b) -> Long.compare(b.windowStats.getRankSum(bySelfTime), a.windowStats.getRankSum(bySelfTime)));
+
+        // Keep the index bounded and raise this consumer's bar for new candidates
+        for (int i = 0; i < ranked.size(); i++) {
+            RankedCandidate candidate = ranked.get(i);
+            if (i < TopKIndex.CAPACITY) {
+                TopKIndex.retain(consumer, candidate.key, candidate.stats);
+            } else {
+                TopKIndex.release(consumer, candidate.key, candidate.stats);
+            }
+        }
+        long weakest = ranked.size() >= TopKIndex.CAPACITY ? ranked.get(TopKIndex.CAPACITY - 1).windowStats.getRankSum(bySelfTime) : 0;
+        TopKIndex.setAdmissionThreshold(consumer, weakest, windowDurationMS);
+
+        java.util.List<StatsEntryWithWindow> result = new java.util.ArrayList<>();
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            RankedCandidate candidate = ranked.get(i);
+            FileInfo info = getFileInfo(candidate.key); // Resolved at registration
+            // Percentiles are only needed for displayed rows, so merge histograms here rather than per candidate
+            candidate.windowStats.histogram = new long[LatencyHistogram.BIN_COUNT];
+            candidate.stats.collectHistogram(windowDurationMS, candidate.windowStats.histogram);
+            result.add(new StatsEntryWithWindow(info, candidate.stats, candidate.windowStats));
+        }
+        return result;
     }
 
 }
-
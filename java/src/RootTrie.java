@@ -0,0 +1,131 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+// Character trie over lowercased, forward-slash root paths: classifying a path is a single
+// walk over its characters, checking each root that ends along the way
+// Built by PathParser from the game's directories; uses no game classes, so it can be tested alone.
+class RootTrie {
+    // A directory prefix and what paths under it are classified as
+    static class Root {
+        final String path; // Forward slashes
+        final FilePrefix prefix;
+        final boolean caseSensitive;
+        final int priority;
+
+        Root(String path, FilePrefix prefix, boolean caseSensitive, int priority) {
+            this.path = path;
+            this.prefix = prefix;
+            this.caseSensitive = caseSensitive;
+            this.priority = priority;
+        }
+
+        // The trie walk is case-insensitive; case-sensitive roots are confirmed here
+        boolean matches(String fname) {
+            for (int i = 0; i < path.length(); i++) {
+                char c = fname.charAt(i);
+                if ((c == '\\' ? '/' : c) != path.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // fname with this root stripped, in forward slashes, minus the prefix-specific leading folders
+        String relativePath(String fname) {
+            String relativePath = fname.substring(path.length()).replace('\\', '/');
+            switch (prefix) {
+                case SMOD:
+                    return stripSteamModPrefixes(relativePath);
+                case GAME:
+                    if (relativePath.startsWith("/")) {
+                        relativePath = relativePath.substring(1);
+                    }
+                    if (relativePath.startsWith("media/lua/")) {
+                        relativePath = relativePath.substring(10); // Skip "media/lua/" (10 chars)
+                    }
+                    return relativePath;
+                default:
+                    // Remove leading separator if present
+                    return relativePath.startsWith("/") ? relativePath.substring(1) : relativePath;
+            }
+        }
+    }
+
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        Root[] roots; // Roots ending at this node, or null
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node node = child(c);
+            if (node == null) {
+                node = new Node();
+                keys = java.util.Arrays.copyOf(keys, keys.length + 1);
+                children = java.util.Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = node;
+            }
+            return node;
+        }
+    }
+
+    private final Node top = new Node();
+    boolean complete = false; // Built with every source available; otherwise PathParser may rebuild it
+
+    void add(Root root) {
+        Node node = top;
+        for (int i = 0; i < root.path.length(); i++) {
+            node = node.addChild(fold(root.path.charAt(i)));
+        }
+        node.roots = node.roots == null ? new Root[] { root } : append(node.roots, root);
+    }
+
+    private static Root[] append(Root[] roots, Root root) {
+        Root[] result = java.util.Arrays.copyOf(roots, roots.length + 1);
+        result[roots.length] = root;
+        return result;
+    }
+
+    // Highest-priority root that fname starts with, or null
+    Root match(String fname) {
+        Root best = null;
+        Node node = top;
+        for (int i = 0; i < fname.length() && node != null; i++) {
+            node = node.child(fold(fname.charAt(i)));
+            if (node != null && node.roots != null) {
+                for (Root root : node.roots) {
+                    if ((best == null || root.priority < best.priority) && (!root.caseSensitive || root.matches(fname))) {
+                        best = root;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static char fold(char c) {
+        return c == '\\' ? '/' : Character.toLowerCase(c);
+    }
+
+    // Strip a leading separator, then "mods/" and "lua/" if present
+    static String stripSteamModPrefixes(String relativePath) {
+        if (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        if (relativePath.startsWith("mods/")) {
+            relativePath = relativePath.substring(5); // Skip "mods/"
+        }
+        if (relativePath.startsWith("lua/")) {
+            relativePath = relativePath.substring(4); // Skip "lua/"
+        }
+        return relativePath;
+    }
+}
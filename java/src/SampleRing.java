@@ -0,0 +1,107 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Preallocated single-producer/single-consumer ring of pending samples
+// The producer is the Lua thread that owns it (via ThreadState), the consumer is the
+// AsyncAggregator thread. Offering a sample is a handful of array stores plus an ordered
+// store of the tail; when the ring is full the sample is counted as dropped, never blocked on.
+public class SampleRing {
+    public static final int CAPACITY = 8192; // Power of two
+    private static final int MASK = CAPACITY - 1;
+
+    final Object[] funcs = new Object[CAPACITY];
+    final long[] starts = new long[CAPACITY];
+    final long[] durations = new long[CAPACITY];
+    final long[] selfTimes = new long[CAPACITY];
+    final int[] weights = new int[CAPACITY];
+    final int[] events = new int[CAPACITY];
+
+    private final AtomicLong tail = new AtomicLong(); // Next slot to write, published by the producer
+    private final AtomicLong head = new AtomicLong(); // Next slot to read, published by the consumer
+    private long cachedHead = 0; // Producer's last view of head, refreshed only when the ring looks full
+    private volatile long dropped = 0; // Written by the producer only
+    private final int thread; // ThreadState.threadIndex of the producer
+    private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread()); // Created by the producer
+    private volatile boolean retired = false; // Set by the aggregator after the final drain
+
+    SampleRing(int thread) {
+        this(thread, true);
+    }
+
+    // Unregistered rings are never drained by the aggregator (used by HookOverhead calibration)
+    SampleRing(int thread, boolean register) {
+        this.thread = thread;
+        if (register) {
+            AsyncAggregator.register(this);
+        }
+    }
+
+    // Producer side; returns false (and counts a drop) if the aggregator has fallen behind
+    public boolean offer(Object fun, long startTime, long duration, long selfTime, int weight, int eventId) {
+        long t = tail.get();
+        if (t - cachedHead >= CAPACITY) {
+            cachedHead = head.get();
+            if (t - cachedHead >= CAPACITY) {
+                dropped = dropped + 1;
+                return false;
+            }
+        }
+        int i = (int) (t & MASK);
+        funcs[i] = fun;
+        starts[i] = startTime;
+        durations[i] = duration;
+        selfTimes[i] = selfTime;
+        weights[i] = weight;
+        events[i] = eventId;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer side; hands every pending sample to PerformanceMonitor and returns how many there were
+    // If recording one throws, head still moves past it, so the samples before it aren't
+    // recorded again on the next pass and the failing one is skipped
+    int drain() {
+        long h = head.get();
+        long t = tail.get();
+        long n = h;
+        try {
+            for (; n < t; n++) {
+                int i = (int) (n & MASK);
+                Object fun = funcs[i];
+                funcs[i] = null; // Don't keep closures alive after they're recorded
+                PerformanceMonitor.recordTiming(fun, starts[i], durations[i], selfTimes[i], weights[i], thread, events[i]);
+            }
+        } finally {
+            head.lazySet(n < t ? n + 1 : t);
+        }
+        return (int) (t - h);
+    }
+
+    // Consumer side; forget pending samples without recording them
+    void discard() {
+        long t = tail.get();
+        java.util.Arrays.fill(funcs, null);
+        head.lazySet(t);
+    }
+
+    // False once the producer thread has finished; it can't offer anything after that
+    boolean isOwnerAlive() {
+        Thread t = owner.get();
+        return t != null && t.isAlive();
+    }
+
+    void retire() {
+        retired = true;
+    }
+
+    // Whether the aggregator has drained it for the last time and dropped it
+    boolean isRetired() {
+        return retired;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,272 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import zombie.ZomboidFileSystem;
+
+// Background writer for the periodic statistics log
+// checkAndLogStatistics() only signals this thread; ranking, console output and the
+// structured file all happen here. The structured file (CSV or JSON Lines, one row per
+// logged entry) lives in the cache dir as ZBLuaPerfMon_stats.<ext> and is rotated to a
+// timestamped name by size or age; only the newest MAX_ROTATED rotated files are kept.
+// Rows are built in one reused StringBuilder with integer-based number formatting.
+public class StatsLogWriter {
+    public enum Format { OFF, CSV, JSONL }
+
+    private static final String FILE_PREFIX = "ZBLuaPerfMon_stats";
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final int MAX_ROTATED = 10;
+    private static final String CSV_HEADER = "time_ms,window_ms,group_by,type,name,line,total_ms,self_ms,avg_ms,min_ms,max_ms,p50_ms,p95_ms,p99_ms,count";
+
+    public static volatile Format format = Format.OFF;
+    public static volatile boolean logConsole = true; // Keep printing the table to console.txt
+    public static int maxFileMB = 10;
+    public static int maxFileMinutes = 60;
+
+    private static volatile boolean pending = false;
+    private static volatile Thread thread = null;
+
+    // Owned by the writer thread
+    private static final StringBuilder line = new StringBuilder(256);
+    private static Writer out = null;
+    private static File outFile = null;
+    private static Format outFormat = Format.OFF;
+    private static long outBytes = 0;
+    private static long outOpenedMs = 0;
+    private static File rotationFailed = null; // Not rotated again (just appended to) until the path changes
+
+    // Called from checkAndLogStatistics() on whatever thread noticed the interval elapsed
+    static void requestLog() {
+        pending = true;
+        if (thread == null) {
+            synchronized (StatsLogWriter.class) {
+                if (thread == null) {
+                    Thread t = new Thread(StatsLogWriter::run, "ZBLuaPerfMon-log-writer");
+                    t.setDaemon(true);
+                    t.start();
+                    thread = t;
+                }
+            }
+        }
+        LockSupport.unpark(thread);
+    }
+
+    private static void run() {
+        while (true) {
+            while (!pending) {
+                LockSupport.park();
+            }
+            pending = false;
+            try {
+                PerformanceMonitor.logStatistics();
+            } catch (Throwable e) {
+                System.err.println("[ZBLuaPerfMon] Failed to log statistics: " + e);
+            }
+        }
+    }
+
+    // Append the logged rows to the structured file (writer thread only)
+    static void writeRows(long windowDurationMS, List<PerformanceMonitor.StatsEntryWithWindow> rows) {
+        Format fmt = format;
+        if (fmt == Format.OFF) {
+            closeFile();
+            return;
+        }
+        try {
+            openFile(fmt);
+            long now = System.currentTimeMillis();
+            String groupBy = ZBLuaPerfMon.groupBy.name().toLowerCase();
+            for (PerformanceMonitor.StatsEntryWithWindow row : rows) {
+                StringBuilder sb = line;
+                sb.setLength(0);
+                if (fmt == Format.CSV) {
+                    appendCsvRow(sb, now, windowDurationMS, groupBy, row);
+                } else {
+                    appendJsonRow(sb, now, windowDurationMS, groupBy, row);
+                }
+                sb.append('\n');
+                out.append(sb);
+                outBytes += sb.length(); // Close enough for rotation; names are almost always ASCII
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("[ZBLuaPerfMon] Failed to write stats file: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    private static void appendCsvRow(StringBuilder sb, long now, long windowMS, String groupBy, PerformanceMonitor.StatsEntryWithWindow row) {
+        TimingStats.WindowStats w = row.windowStats;
+        sb.append(now).append(',').append(windowMS).append(',').append(groupBy).append(',')
+            .append(typeOf(row.info)).append(',');
+        appendCsvString(sb, row.info.relativePath);
+        sb.append(',').append(row.info.line).append(',');
+        appendMs(sb, w.sum).append(',');
+        appendMs(sb, w.selfSum).append(',');
+        appendMs(sb, w.count > 0 ? w.sum / w.count : 0).append(',');
+        appendMs(sb, w.min).append(',');
+        appendMs(sb, w.max).append(',');
+        appendMs(sb, percentile(w, 50)).append(',');
+        appendMs(sb, percentile(w, 95)).append(',');
+        appendMs(sb, percentile(w, 99)).append(',');
+        sb.append(w.count);
+    }
+
+    private static void appendJsonRow(StringBuilder sb, long now, long windowMS, String groupBy, PerformanceMonitor.StatsEntryWithWindow row) {
+        TimingStats.WindowStats w = row.windowStats;
+        sb.append("{\"time_ms\":").append(now)
+            .append(",\"window_ms\":").append(windowMS)
+            .append(",\"group_by\":\"").append(groupBy)
+            .append("\",\"type\":\"").append(typeOf(row.info))
+            .append("\",\"name\":\"");
+        appendJsonString(sb, row.info.relativePath);
+        sb.append("\",\"line\":").append(row.info.line);
+        appendMs(sb.append(",\"total_ms\":"), w.sum);
+        appendMs(sb.append(",\"self_ms\":"), w.selfSum);
+        appendMs(sb.append(",\"avg_ms\":"), w.count > 0 ? w.sum / w.count : 0);
+        appendMs(sb.append(",\"min_ms\":"), w.min);
+        appendMs(sb.append(",\"max_ms\":"), w.max);
+        appendMs(sb.append(",\"p50_ms\":"), percentile(w, 50));
+        appendMs(sb.append(",\"p95_ms\":"), percentile(w, 95));
+        appendMs(sb.append(",\"p99_ms\":"), percentile(w, 99));
+        sb.append(",\"count\":").append(w.count).append('}');
+    }
+
+    private static String typeOf(FileInfo info) {
+        if (info.prefix == null) {
+            return FilePrefix.UNK.name();
+        }
+        return info.prefix == FilePrefix.INTERNAL ? "LuaPerfMon" : info.prefix.name();
+    }
+
+    private static long percentile(TimingStats.WindowStats w, double percentile) {
+        return w.histogram != null ? LatencyHistogram.percentileNanos(w.histogram, percentile, w.min, w.max) : 0;
+    }
+
+    // ns as milliseconds with 3 decimals, without String.format
+    private static StringBuilder appendMs(StringBuilder sb, long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            sb.append('-');
+            micros = -micros;
+        }
+        long frac = micros % 1000;
+        sb.append(micros / 1000).append('.');
+        if (frac < 100) sb.append('0');
+        if (frac < 10) sb.append('0');
+        return sb.append(frac);
+    }
+
+    private static void appendCsvString(StringBuilder sb, String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            sb.append(s);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static void openFile(Format fmt) throws IOException {
+        long now = System.currentTimeMillis();
+        if (out != null && (fmt != outFormat
+                || (!outFile.equals(rotationFailed)
+                    && (outBytes >= (long) maxFileMB * 1024 * 1024 || now - outOpenedMs >= maxFileMinutes * 60_000L)))) {
+            rotate();
+        }
+        if (out != null) {
+            return;
+        }
+        if (ZomboidFileSystem.instance == null) {
+            throw new IOException("cache dir not available yet");
+        }
+        File file = new File(ZomboidFileSystem.instance.getCacheDir(), FILE_PREFIX + "." + extension(fmt));
+        file.getParentFile().mkdirs();
+        if (!file.equals(rotationFailed)) {
+            rotationFailed = null;
+        }
+        boolean isNew = !file.exists() || file.length() == 0;
+        out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+        outFile = file;
+        outFormat = fmt;
+        outBytes = file.length();
+        outOpenedMs = now;
+        if (isNew && fmt == Format.CSV) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+            outBytes += CSV_HEADER.length() + 1;
+        }
+    }
+
+    // Close the current file and move it aside under a timestamped name
+    private static void rotate() {
+        File current = outFile;
+        Format fmt = outFormat;
+        closeFile();
+        if (current == null || !current.exists()) {
+            return;
+        }
+        String ext = extension(fmt);
+        File rotated = new File(current.getParentFile(), FILE_PREFIX + "_" + LocalDateTime.now().format(FILE_TIMESTAMP) + "." + ext);
+        if (!current.renameTo(rotated)) {
+            // Keep appending to it rather than retrying (and logging) on every write
+            System.err.println("[ZBLuaPerfMon] Failed to rotate " + current + ", appending to it from now on");
+            rotationFailed = current;
+            return;
+        }
+        File[] old = current.getParentFile().listFiles((dir, name) -> name.startsWith(FILE_PREFIX + "_") && name.endsWith("." + ext));
+        if (old != null && old.length > MAX_ROTATED) {
+            Arrays.sort(old); // Timestamped names sort chronologically
+            for (int i = 0; i < old.length - MAX_ROTATED; i++) {
+                old[i].delete();
+            }
+        }
+    }
+
+    private static void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing useful to do
+            }
+        }
+        out = null;
+        outFile = null;
+        outFormat = Format.OFF;
+        outBytes = 0;
+    }
+
+    private static String extension(Format fmt) {
+        return fmt == Format.CSV ? "csv" : "jsonl";
+    }
+}
@@ -0,0 +1,401 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import zombie.ZomboidFileSystem;
+
+// Immutable copy of the aggregated stats over a window, for before/after comparisons
+// ("what did enabling mod X cost?"). One row per function and per mod, keyed by display
+// name ("LMOD:Foo/client/bar.lua:12", mod name) so snapshots from different sessions can be
+// compared after a restart. Diffs compare per-second rates, since the covered time can differ.
+public class StatsSnapshot {
+    public static final String KIND_FUNCTION = "FUNCTION";
+    public static final String KIND_MOD = "MOD";
+
+    private static final String FILE_PREFIX = "ZBLuaPerfMon_snapshot_";
+    private static final String DIFF_FILE_PREFIX = "ZBLuaPerfMon_diff_";
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final String FILE_MAGIC = "# ZBLuaPerfMon snapshot";
+    private static final String ROW_HEADER = "kind\tkey\ttotal_ns\tself_ns\tcount\tp50_ns\tp95_ns\tp99_ns";
+
+    // Snapshots kept in memory by name, in the order they were taken
+    private static final Map<String, StatsSnapshot> saved = new LinkedHashMap<>();
+
+    public final String name;
+    public final long takenAtMillis;
+    public final long windowMS;
+    public final long coveredMS; // Window, or less if stats were reset more recently
+    public final int frames;
+    public final double luaMsPerFrame;
+
+    // One column per field, one row per function or mod
+    private final String[] kinds;
+    private final String[] keys;
+    private final long[] totalNs;
+    private final long[] selfNs;
+    private final long[] counts;
+    private final long[] p50Ns;
+    private final long[] p95Ns;
+    private final long[] p99Ns;
+
+    private StatsSnapshot(String name, long takenAtMillis, long windowMS, long coveredMS, int frames, double luaMsPerFrame, List<RawRow> rows) {
+        this.name = name;
+        this.takenAtMillis = takenAtMillis;
+        this.windowMS = windowMS;
+        this.coveredMS = Math.max(1, coveredMS);
+        this.frames = frames;
+        this.luaMsPerFrame = luaMsPerFrame;
+        int n = rows.size();
+        kinds = new String[n];
+        keys = new String[n];
+        totalNs = new long[n];
+        selfNs = new long[n];
+        counts = new long[n];
+        p50Ns = new long[n];
+        p95Ns = new long[n];
+        p99Ns = new long[n];
+        for (int i = 0; i < n; i++) {
+            RawRow row = rows.get(i);
+            kinds[i] = row.kind;
+            keys[i] = row.key;
+            long[] values = row.values;
+            totalNs[i] = values[0];
+            selfNs[i] = values[1];
+            counts[i] = values[2];
+            p50Ns[i] = values[3];
+            p95Ns[i] = values[4];
+            p99Ns[i] = values[5];
+        }
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    // Aggregate every function and mod with samples in the last windowMS
+    public static StatsSnapshot take(String name, long windowMS) {
+        windowMS = Math.max(1000, Math.min(windowMS, TimingStats.MAX_WINDOW_MS));
+        List<RawRow> rows = new ArrayList<>();
+
+        int count = FunctionRegistry.getCount();
+        for (int id = 0; id < count; id++) {
+            FunctionRegistry.Entry entry = FunctionRegistry.get(id);
+            if (entry == null) {
+                continue;
+            }
+            TimingStats.WindowStats windowStats = entry.stats.getWindowStats(windowMS, null);
+            if (windowStats == null) {
+                continue;
+            }
+            windowStats.histogram = new long[LatencyHistogram.BIN_COUNT];
+            entry.stats.collectHistogram(windowMS, windowStats.histogram);
+            rows.add(row(KIND_FUNCTION, PerformanceMonitor.getDisplayName(id), windowStats));
+        }
+        for (PerformanceMonitor.StatsEntryWithWindow mod : GroupStats.getTopEntries(GroupBy.MOD, windowMS, Integer.MAX_VALUE)) {
+            rows.add(row(KIND_MOD, mod.info.relativePath, mod.windowStats));
+        }
+
+        FrameStats.Summary summary = FrameStats.summarize(windowMS);
+        long coveredMS = Math.min(windowMS, PerformanceMonitor.getStatsAgeMS());
+        return new StatsSnapshot(name, System.currentTimeMillis(), windowMS, coveredMS, summary.frames, summary.getAverageLuaMs(), rows);
+    }
+
+    // A row while a snapshot is being built: total, self, count, p50, p95, p99
+    private static class RawRow {
+        final String kind;
+        final String key;
+        final long[] values;
+
+        RawRow(String kind, String key, long[] values) {
+            this.kind = kind;
+            this.key = key;
+            this.values = values;
+        }
+    }
+
+    private static RawRow row(String kind, String key, TimingStats.WindowStats w) {
+        long[] values = {
+            w.sum, w.selfSum, w.count,
+            percentile(w, 50), percentile(w, 95), percentile(w, 99)
+        };
+        return new RawRow(kind, key, values);
+    }
+
+    private static long percentile(TimingStats.WindowStats w, double percentile) {
+        return w.histogram != null ? LatencyHistogram.percentileNanos(w.histogram, percentile, w.min, w.max) : 0;
+    }
+
+    // In-memory store, used by the ZBLuaPerfMon Lua API
+
+    public static synchronized void save(StatsSnapshot snapshot) {
+        saved.remove(snapshot.name); // Re-taking a name moves it to the end
+        saved.put(snapshot.name, snapshot);
+    }
+
+    public static synchronized StatsSnapshot get(String name) {
+        return saved.get(name);
+    }
+
+    public static synchronized boolean remove(String name) {
+        return saved.remove(name) != null;
+    }
+
+    public static synchronized List<String> getNames() {
+        return new ArrayList<>(saved.keySet());
+    }
+
+    // Files: tab-separated, a few "field\tvalue" lines, then the row header and one line per row
+
+    public String write() {
+        if (ZomboidFileSystem.instance == null) {
+            return null;
+        }
+        File file = new File(ZomboidFileSystem.instance.getCacheDir(), FILE_PREFIX + sanitize(name) + "_" + LocalDateTime.now().format(FILE_TIMESTAMP) + ".tsv");
+        file.getParentFile().mkdirs();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
+            writer.write(FILE_MAGIC);
+            writer.newLine();
+            writer.write("name\t" + name.replace('\t', ' '));
+            writer.newLine();
+            writer.write("taken\t" + takenAtMillis);
+            writer.newLine();
+            writer.write("window_ms\t" + windowMS);
+            writer.newLine();
+            writer.write("covered_ms\t" + coveredMS);
+            writer.newLine();
+            writer.write("frames\t" + frames);
+            writer.newLine();
+            writer.write("lua_ms_per_frame\t" + luaMsPerFrame);
+            writer.newLine();
+            writer.write(ROW_HEADER);
+            writer.newLine();
+            StringBuilder sb = new StringBuilder(160);
+            for (int i = 0; i < keys.length; i++) {
+                sb.setLength(0);
+                sb.append(kinds[i]).append('\t').append(keys[i].replace('\t', ' '))
+                    .append('\t').append(totalNs[i]).append('\t').append(selfNs[i]).append('\t').append(counts[i])
+                    .append('\t').append(p50Ns[i]).append('\t').append(p95Ns[i]).append('\t').append(p99Ns[i]);
+                writer.write(sb.toString());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("[ZBLuaPerfMon] Failed to write snapshot: " + e.getMessage());
+            return null;
+        }
+        return file.getAbsolutePath();
+    }
+
+    // Read a file written by write(); returns null (and logs why) if it isn't one
+    public static StatsSnapshot read(File file) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            if (!FILE_MAGIC.equals(reader.readLine())) {
+                System.err.println("[ZBLuaPerfMon] Not a snapshot file: " + file);
+                return null;
+            }
+            Map<String, String> fields = new HashMap<>();
+            List<RawRow> rows = new ArrayList<>();
+            boolean inRows = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!inRows) {
+                    if (line.equals(ROW_HEADER)) {
+                        inRows = true;
+                        continue;
+                    }
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        fields.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                    continue;
+                }
+                String[] parts = line.split("\t", -1);
+                if (parts.length < 8) {
+                    continue;
+                }
+                long[] values = new long[6];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.parseLong(parts[2 + i]);
+                }
+                rows.add(new RawRow(parts[0], parts[1], values));
+            }
+            return new StatsSnapshot(
+                fields.getOrDefault("name", file.getName()),
+                Long.parseLong(fields.getOrDefault("taken", "0")),
+                Long.parseLong(fields.getOrDefault("window_ms", "0")),
+                Long.parseLong(fields.getOrDefault("covered_ms", "0")),
+                Integer.parseInt(fields.getOrDefault("frames", "0")),
+                Double.parseDouble(fields.getOrDefault("lua_ms_per_frame", "0")),
+                rows);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("[ZBLuaPerfMon] Failed to read snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    // Per-second rates of one row in this snapshot, or zeros when the row is absent
+    private double msPerSecond(int i) {
+        return i < 0 ? 0 : totalNs[i] / 1_000_000.0 / (coveredMS / 1000.0);
+    }
+
+    private double selfMsPerSecond(int i) {
+        return i < 0 ? 0 : selfNs[i] / 1_000_000.0 / (coveredMS / 1000.0);
+    }
+
+    private double callsPerSecond(int i) {
+        return i < 0 ? 0 : counts[i] / (coveredMS / 1000.0);
+    }
+
+    private double p95Ms(int i) {
+        return i < 0 ? 0 : p95Ns[i] / 1_000_000.0;
+    }
+
+    private Map<String, Integer> index() {
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            index.put(kinds[i] + '\t' + keys[i], i);
+        }
+        return index;
+    }
+
+    // Rows of both snapshots matched by kind and key, ranked by the change in total ms per second
+    public static Diff diff(StatsSnapshot before, StatsSnapshot after) {
+        Map<String, Integer> beforeIndex = before.index();
+        Map<String, Integer> afterIndex = after.index();
+        List<Diff.Row> rows = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : afterIndex.entrySet()) {
+            Integer b = beforeIndex.get(e.getKey());
+            rows.add(new Diff.Row(before, b != null ? b : -1, after, e.getValue()));
+        }
+        for (Map.Entry<String, Integer> e : beforeIndex.entrySet()) {
+            if (!afterIndex.containsKey(e.getKey())) {
+                rows.add(new Diff.Row(before, e.getValue(), after, -1));
+            }
+        }
+        rows.sort((x, y) -> Double.compare(Math.abs(y.getDeltaMsPerSecond()), Math.abs(x.getDeltaMsPerSecond())));
+        return new Diff(before, after, rows);
+    }
+
+    public static class Diff {
+        public final StatsSnapshot before;
+        public final StatsSnapshot after;
+        public final List<Row> rows; // Largest absolute change first
+
+        Diff(StatsSnapshot before, StatsSnapshot after, List<Row> rows) {
+            this.before = before;
+            this.after = after;
+            this.rows = java.util.Collections.unmodifiableList(rows);
+        }
+
+        public static class Row {
+            public final String kind;
+            public final String key;
+            public final double beforeMsPerSecond, afterMsPerSecond;
+            public final double beforeSelfMsPerSecond, afterSelfMsPerSecond;
+            public final double beforeCallsPerSecond, afterCallsPerSecond;
+            public final double beforeP95Ms, afterP95Ms;
+
+            Row(StatsSnapshot before, int b, StatsSnapshot after, int a) {
+                kind = a >= 0 ? after.kinds[a] : before.kinds[b];
+                key = a >= 0 ? after.keys[a] : before.keys[b];
+                beforeMsPerSecond = before.msPerSecond(b);
+                afterMsPerSecond = after.msPerSecond(a);
+                beforeSelfMsPerSecond = before.selfMsPerSecond(b);
+                afterSelfMsPerSecond = after.selfMsPerSecond(a);
+                beforeCallsPerSecond = before.callsPerSecond(b);
+                afterCallsPerSecond = after.callsPerSecond(a);
+                beforeP95Ms = before.p95Ms(b);
+                afterP95Ms = after.p95Ms(a);
+            }
+
+            public double getDeltaMsPerSecond() {
+                return afterMsPerSecond - beforeMsPerSecond;
+            }
+        }
+
+        // Human-readable summary of the `limit` largest changes of each kind
+        public String format(int limit) {
+            StringBuilder sb = new StringBuilder(256 + limit * 160);
+            sb.append("Snapshot diff \"").append(before.name).append("\" -> \"").append(after.name).append("\" (")
+                .append(before.coveredMS / 1000).append("s vs ").append(after.coveredMS / 1000).append("s)\n");
+            sb.append("Lua/frame: ");
+            TextFormat.appendFixed(sb, before.luaMsPerFrame, 2, 0).append("ms -> ");
+            TextFormat.appendFixed(sb, after.luaMsPerFrame, 2, 0).append("ms (");
+            appendSigned(sb, after.luaMsPerFrame - before.luaMsPerFrame, 2).append("ms)\n");
+            for (String kind : new String[] { KIND_MOD, KIND_FUNCTION }) {
+                sb.append(kind.equals(KIND_MOD) ? "Mods" : "Functions")
+                    .append(" (ms/s before -> after, delta; calls/s; p95 ms):\n");
+                int shown = 0;
+                for (Row row : rows) {
+                    if (!row.kind.equals(kind)) {
+                        continue;
+                    }
+                    if (shown++ >= limit) {
+                        break;
+                    }
+                    TextFormat.appendFixed(sb, row.beforeMsPerSecond, 2, 9).append(" ->");
+                    TextFormat.appendFixed(sb, row.afterMsPerSecond, 2, 9).append("  ");
+                    int start = sb.length();
+                    appendSigned(sb, row.getDeltaMsPerSecond(), 2);
+                    TextFormat.appendLeft(sb, "", Math.max(0, 10 - (sb.length() - start)));
+                    TextFormat.appendFixed(sb, row.beforeCallsPerSecond, 1, 8).append(" ->");
+                    TextFormat.appendFixed(sb, row.afterCallsPerSecond, 1, 8).append("  ");
+                    TextFormat.appendFixed(sb, row.beforeP95Ms, 2, 7).append(" ->");
+                    TextFormat.appendFixed(sb, row.afterP95Ms, 2, 7).append("  ");
+                    sb.append(row.key).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+
+        private static StringBuilder appendSigned(StringBuilder sb, double value, int decimals) {
+            if (value >= 0) {
+                sb.append('+');
+                return TextFormat.appendFixed(sb, value, decimals, 0);
+            }
+            sb.append('-');
+            return TextFormat.appendFixed(sb, -value, decimals, 0);
+        }
+
+        // All rows as tab-separated values in the cache dir; returns the file path, or null
+        public String write() {
+            if (ZomboidFileSystem.instance == null) {
+                return null;
+            }
+            File file = new File(ZomboidFileSystem.instance.getCacheDir(),
+                DIFF_FILE_PREFIX + sanitize(before.name) + "_vs_" + sanitize(after.name) + "_" + LocalDateTime.now().format(FILE_TIMESTAMP) + ".tsv");
+            file.getParentFile().mkdirs();
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
+                writer.write("kind\tkey\tbefore_ms_per_s\tafter_ms_per_s\tdelta_ms_per_s\tbefore_self_ms_per_s\tafter_self_ms_per_s"
+                    + "\tbefore_calls_per_s\tafter_calls_per_s\tbefore_p95_ms\tafter_p95_ms");
+                writer.newLine();
+                for (Row row : rows) {
+                    writer.write(row.kind + '\t' + row.key.replace('\t', ' ')
+                        + '\t' + row.beforeMsPerSecond + '\t' + row.afterMsPerSecond + '\t' + row.getDeltaMsPerSecond()
+                        + '\t' + row.beforeSelfMsPerSecond + '\t' + row.afterSelfMsPerSecond
+                        + '\t' + row.beforeCallsPerSecond + '\t' + row.afterCallsPerSecond
+                        + '\t' + row.beforeP95Ms + '\t' + row.afterP95Ms);
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                System.err.println("[ZBLuaPerfMon] Failed to write snapshot diff: " + e.getMessage());
+                return null;
+            }
+            return file.getAbsolutePath();
+        }
+    }
+}
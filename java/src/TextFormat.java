@@ -0,0 +1,65 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+// Allocation-free replacements for the String.format patterns used by the OSD
+// ("%8.1f", "%5d", "%-Ns"), appending straight into a caller-owned StringBuilder
+public final class TextFormat {
+    private static final long[] POW10 = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+
+    private TextFormat() {
+    }
+
+    // Like String.format("%" + width + "." + decimals + "f", value), rounding half up
+    public static StringBuilder appendFixed(StringBuilder sb, double value, int decimals, int width) {
+        long scale = POW10[decimals];
+        boolean negative = value < 0;
+        long scaled = Math.round(Math.abs(value) * scale);
+        long whole = scaled / scale;
+        long frac = scaled % scale;
+
+        int length = digits(whole) + (negative ? 1 : 0) + (decimals > 0 ? decimals + 1 : 0);
+        for (int i = length; i < width; i++) {
+            sb.append(' ');
+        }
+        if (negative) {
+            sb.append('-');
+        }
+        sb.append(whole);
+        if (decimals > 0) {
+            sb.append('.');
+            for (int d = frac == 0 ? 0 : digits(frac); d < decimals; d++) {
+                sb.append('0');
+            }
+            if (frac > 0) {
+                sb.append(frac);
+            }
+        }
+        return sb;
+    }
+
+    // Like String.format("%" + width + "d", value)
+    public static StringBuilder appendInt(StringBuilder sb, long value, int width) {
+        int length = value < 0 ? digits(-value) + 1 : digits(value);
+        for (int i = length; i < width; i++) {
+            sb.append(' ');
+        }
+        return sb.append(value);
+    }
+
+    // Like String.format("%-" + width + "s", s)
+    public static StringBuilder appendLeft(StringBuilder sb, CharSequence s, int width) {
+        sb.append(s);
+        for (int i = s.length(); i < width; i++) {
+            sb.append(' ');
+        }
+        return sb;
+    }
+
+    private static int digits(long value) {
+        int n = 1;
+        while (value >= 10) {
+            value /= 10;
+            n++;
+        }
+        return n;
+    }
+}
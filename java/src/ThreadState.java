@@ -0,0 +1,234 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Per-thread state for the LuaCaller hooks
+// Holds the sampling countdown, the async SampleRing and a shadow call stack of hooked
+// pcalls so each frame can report both inclusive and self (exclusive) time: a finished
+// frame adds its inclusive duration to its parent's child time, and its own self time
+// is its duration minus its children's.
+// Every hooked call goes through enter()/exit() so the depth is always the true one; with
+// sampling on, only whole trees (an outermost call and everything nested in it) are timed,
+// so a timed frame never has untimed children hiding in its self time.
+public class ThreadState {
+    private static final ThreadLocal<ThreadState> current = ThreadLocal.withInitial(ThreadState::new);
+    private static final AtomicInteger nextThreadIndex = new AtomicInteger();
+    // Indices of finished threads, handed out again so arrays indexed by threadIndex (TimingStats
+    // stripes) only grow to the most threads alive at once; see recycleIndices()
+    private static final ConcurrentLinkedQueue<Integer> freeIndices = new ConcurrentLinkedQueue<>();
+    private static final CopyOnWriteArrayList<ThreadState> indexed = new CopyOnWriteArrayList<>();
+
+    public static final int MAX_DEPTH = 256; // Deeper frames are still timed, but don't track child time
+
+    private final long[] childNs = new long[MAX_DEPTH]; // Inclusive time of finished children, per open frame
+    private final int[] pathNodes = new int[MAX_DEPTH]; // CallPathTree node per open frame, or CallPathTree.NONE
+    private final long[] overheadNs = new long[MAX_DEPTH]; // Hook cost of finished descendants, per open frame
+    private int depth = 0;
+    public final int threadIndex = allocateIndex(); // Small id, stable while the thread lives; reused after it finishes
+    private final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+    // Running totals read (racily, which is fine for accounting) by FrameStats.closeFrame()
+    long luaNsTotal = 0; // Inclusive time of timed top-level hooked calls, scaled by their tree's weight
+    long callsTotal = 0; // Hooked calls, timed or not
+    // Lua event being dispatched on this thread (EventStats id, or EventStats.NONE) and the
+    // shadow stack depth its dispatch started at; maintained by Patch_LuaEventManager
+    int eventId = EventStats.NONE;
+    int eventDepth = 0;
+    private CallPathTree pathTree; // Allocated on first use of ZBLuaPerfMon.callPathsEnabled
+    private SampleRing sampleRing; // Allocated on first async-recorded sample
+    private CallHistory callHistory; // Allocated on first use of ZBLuaPerfMon.hitchCaptureEnabled
+    private int sampleCountdown = 0;
+    private int recordCostCountdown = 0;
+    private boolean treeTimed = true; // Whether the current outermost call (and so its whole tree) is timed
+    private int treeWeight = 1; // Calls each timed call of the current tree stands for
+    private int rngState = (int) Thread.currentThread().getId() * 0x9E3779B9 | 1;
+
+    private ThreadState() {
+        this(true);
+    }
+
+    private ThreadState(boolean register) {
+        if (register) {
+            FrameStats.threads.add(this);
+            indexed.add(this);
+        }
+    }
+
+    private static int allocateIndex() {
+        Integer index = freeIndices.poll();
+        return index != null ? index : nextThreadIndex.getAndIncrement();
+    }
+
+    // Free the indices of finished threads; called periodically by the AsyncAggregator thread,
+    // after it has dropped the rings of finished threads. An index is only reused once nothing
+    // can record under it anymore: its thread is gone and its SampleRing (if any) fully drained,
+    // so a stripe keeps a single writer when the next thread takes it over
+    static void recycleIndices() {
+        for (ThreadState state : indexed) {
+            if (!state.isOwnerAlive() && (state.sampleRing == null || state.sampleRing.isRetired())) {
+                indexed.remove(state);
+                freeIndices.add(state.threadIndex);
+            }
+        }
+    }
+
+    // A state that isn't the current thread's and isn't counted by FrameStats (used by HookOverhead calibration)
+    static ThreadState detached() {
+        return new ThreadState(false);
+    }
+
+    public static ThreadState get() {
+        return current.get();
+    }
+
+    // 1-in-N sampling decision for the next outermost hooked call (N = Patch_LuaCaller.samplingRate)
+    // The gap between samples is randomized around N so periodic call sequences (e.g. the
+    // same N listeners fired every tick) don't always land on the same function
+    public boolean sampleNext() {
+        int rate = Patch_LuaCaller.samplingRate;
+        if (rate <= 1) {
+            return true;
+        }
+        if (--sampleCountdown > 0) {
+            return false;
+        }
+        // xorshift32, uniform gap in [1, 2N-1]
+        int x = rngState;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        rngState = x;
+        sampleCountdown = 1 + (int) ((x & 0x7fffffffL) % (2L * rate - 1));
+        return true;
+    }
+
+    // Whether to measure this synchronous recording for OverheadGovernor (1 in RECORD_COST_SAMPLING)
+    boolean timeNextRecord() {
+        if (--recordCostCountdown > 0) {
+            return false;
+        }
+        recordCostCountdown = OverheadGovernor.RECORD_COST_SAMPLING;
+        return true;
+    }
+
+    // Open a frame for `fun`; returns the stack depth including it (always >= 1), to be passed
+    // back to compensate() and exit(), or to exitUntimed() if isTimed() was false
+    public int enter(Object fun) {
+        int frameDepth = depth;
+        if (frameDepth == 0) {
+            treeTimed = sampleNext();
+            treeWeight = Math.max(1, Patch_LuaCaller.samplingRate);
+        }
+        if (treeTimed && frameDepth < MAX_DEPTH) {
+            childNs[frameDepth] = 0;
+            overheadNs[frameDepth] = 0;
+            pathNodes[frameDepth] = ZBLuaPerfMon.callPathsEnabled ? enterPath(frameDepth, fun) : CallPathTree.NONE;
+        }
+        depth = frameDepth + 1;
+        return frameDepth + 1;
+    }
+
+    // Whether the frame just opened by enter() belongs to a sampled tree and should be timed
+    public boolean isTimed() {
+        return treeTimed;
+    }
+
+    // Calls each timed call stands for (the sampling rate when its tree started)
+    public int getWeight() {
+        return treeWeight;
+    }
+
+    private int enterPath(int frameDepth, Object fun) {
+        if (pathTree == null) {
+            pathTree = new CallPathTree();
+        } else if (pathTree.resetIfCleared()) {
+            // Paths were cleared: frames still open hold node ids of the old tree
+            java.util.Arrays.fill(pathNodes, 0, frameDepth, CallPathTree.NONE);
+        }
+        int parent = frameDepth > 0 ? pathNodes[frameDepth - 1] : CallPathTree.ROOT;
+        if (parent == CallPathTree.NONE) {
+            parent = CallPathTree.ROOT; // Recording was switched on mid-stack
+        }
+        if (frameDepth >= CallPathTree.MAX_DEPTH) {
+            return parent; // Too deep: charge to the deepest allowed ancestor
+        }
+        return pathTree.child(parent, FunctionRegistry.idFor(fun));
+    }
+
+    // Measured duration of the frame enter() returned `entered` for, minus the calibrated cost of
+    // its own clock reads and of the hooks of every hooked call nested in it (clamped at 0)
+    public long compensate(int entered, long rawNanos) {
+        if (!ZBLuaPerfMon.overheadCompensation) {
+            return rawNanos;
+        }
+        int frameDepth = entered - 1;
+        long nested = frameDepth < MAX_DEPTH ? overheadNs[frameDepth] : 0;
+        long duration = rawNanos - HookOverhead.timedNs - nested;
+        return duration > 0 ? duration : 0;
+    }
+
+    // Close a timed frame (`entered` as returned by enter()) and return its (unscaled) self time
+    // Resetting depth from the caller's saved value keeps the stack consistent even if an
+    // inner exit hook was skipped (e.g. by an exception escaping the hooked method)
+    public long exit(Object fun, int entered, long startTime, long durationNanos) {
+        int frameDepth = entered - 1;
+        depth = frameDepth;
+        int weight = treeWeight;
+        callsTotal++;
+        if (frameDepth == 0) {
+            luaNsTotal += durationNanos * weight;
+        }
+        if (eventId != EventStats.NONE && frameDepth == eventDepth) {
+            EventStats.countListener(eventId, 1);
+        }
+        long children = frameDepth < MAX_DEPTH ? childNs[frameDepth] : 0;
+        if (frameDepth > 0 && frameDepth <= MAX_DEPTH) {
+            childNs[frameDepth - 1] += durationNanos;
+            overheadNs[frameDepth - 1] += (frameDepth < MAX_DEPTH ? overheadNs[frameDepth] : 0) + HookOverhead.callNs;
+        }
+        long self = durationNanos - children;
+        if (self < 0) {
+            self = 0;
+        }
+        if (frameDepth < MAX_DEPTH && pathNodes[frameDepth] != CallPathTree.NONE && pathTree != null) {
+            pathTree.addSelfTime(pathNodes[frameDepth], self * weight);
+        }
+        if (ZBLuaPerfMon.hitchCaptureEnabled && durationNanos >= Patch_LuaCaller.minTimeNS) {
+            if (callHistory == null) {
+                callHistory = new CallHistory(threadIndex);
+            }
+            callHistory.add(fun, startTime, durationNanos, self, frameDepth);
+        }
+        return self;
+    }
+
+    // Close a frame of an unsampled tree: just the stack bookkeeping, no clock reads or recording
+    public void exitUntimed(int entered) {
+        int frameDepth = entered - 1;
+        depth = frameDepth;
+        callsTotal++;
+        if (eventId != EventStats.NONE && frameDepth == eventDepth) {
+            EventStats.countListener(eventId, 1);
+        }
+    }
+
+    // Ring the pcall exit hooks append to when ZBLuaPerfMon.asyncRecording is on
+    public SampleRing getSampleRing() {
+        if (sampleRing == null) {
+            sampleRing = new SampleRing(threadIndex);
+        }
+        return sampleRing;
+    }
+
+    // False once the owning thread has finished; FrameStats then stops tracking the state
+    boolean isOwnerAlive() {
+        Thread t = owner.get();
+        return t != null && t.isAlive();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+}
@@ -1,318 +1,553 @@
 package me.zed_0xff.zb_lua_perf_mon;
 
+import java.util.concurrent.atomic.LongAdder;
+
 public class TimingStats {
-    private static final long BUCKET_TIME_NS = 50_000_000L; // Each bucket represents 50ms in nanoseconds
-    
-    // Round-robin array for storing timestamp bucket data
-    // Each element represents a 50ms time window:
-    // - buckets[currentBucketIndex]: last 50ms (most recent)
-    // - buckets[(currentBucketIndex-1) % windowSize]: 50-100ms ago
-    // - buckets[(currentBucketIndex-2) % windowSize]: 100-150ms ago
-    // - etc.
-    private static class BucketData {
-        long count = 0;
-        long sum = 0;
-        long min = Long.MAX_VALUE;
-        long max = Long.MIN_VALUE;
-        long bucketEndTimeNs = 0; // Timestamp when this bucket's time window ended (nanoseconds)
+    private static final int INITIAL_CAPACITY = 2; // Cells allocated on a ring's first sample
+
+    // Hierarchical rollup tiers. Every sample is added to all three, so a window query
+    // combines a handful of pre-aggregated cells instead of walking every 50ms tick:
+    // - ticks:   50ms cells, kept for the last 5 seconds (exact for short windows)
+    // - seconds: 1s cells, kept for the last 2 minutes
+    // - minutes: 1min cells, kept for the last hour
+    // The seconds and minutes tiers also carry a sparse LatencyHistogram per cell for percentiles:
+    // only the bins a cell actually hit are stored, so a function with a narrow latency spread
+    // costs a few entries per cell rather than LatencyHistogram.BIN_COUNT
+    private static final int TICKS_PER_SECOND = (int) (1000 / EpochClock.TICK_MS);
+    private static final int TICKS_PER_MINUTE = TICKS_PER_SECOND * 60;
+    private static final int TICK_RETENTION = 5 * TICKS_PER_SECOND;
+    private static final int SECOND_RETENTION = 120;
+    private static final int MINUTE_RETENTION = 60;
+
+    public static final long MAX_WINDOW_MS = MINUTE_RETENTION * 60_000L;
+
+    // Calls left out of the seconds-tier histograms (which answer the OSD and log percentiles)
+    // because they arrived after their second's cell was closed; see CellRing
+    private static final LongAdder lateHistogramCalls = new LongAdder();
+
+    // Each producing Lua thread gets its own stripe (indexed by its ThreadState.threadIndex), and
+    // its samples are added by whichever single thread records them: the Lua thread itself, or
+    // the AsyncAggregator draining its SampleRing. So addSample() never blocks and, apart from a
+    // few samples in flight while asyncRecording is toggled, never races with another writer.
+    // Readers merge all stripes at query time; they may observe a stripe mid-update, which is
+    // acceptable for monitoring purposes. A finished thread's index (and so its stripe, with its
+    // data) goes to the next new thread, so the array only grows to the most threads alive at once.
+    private volatile Stripe[] stripes = new Stripe[0]; // Indexed by ThreadState.threadIndex, grown on demand
+    volatile int topKConsumers = 0; // TopKIndex consumers keeping it as a candidate; only changed by TopKIndex
+
+    // stripe: ThreadState.threadIndex of the thread that made the call
+    // The sample is bucketed by the tick it started in, not by when it's recorded, so async
+    // draining and aggregator stalls don't shift it into later ticks
+    // weight: number of calls the sample stands for when sampling; counts, sums and histogram
+    // are scaled by it, min/max are not
+    // Returns the stripe's inclusive total for the sample's second, used for TopKIndex admission
+    // (an upper bound on self time too, so it works for either ranking)
+    public long addSample(int stripe, long startTimeNs, long durationNanos, long selfNanos, int weight) {
+        return getStripe(stripe).addSample(EpochClock.tickAt(startTimeNs), durationNanos, selfNanos, weight);
     }
-    
-    private final BucketData[] buckets; // Once-allocated round-robin array
-    private int currentBucketIndex = 0; // Points to the current (most recent) timestamp bucket
-    private final int windowSize; // Number of timestamp buckets to keep (total time window = windowSize * 50ms)
-    private long lastBucketTime = System.nanoTime(); // Track when current bucket started
-    
-    // Aggregated stats across all buckets
-    private long totalCount = 0;
-    private long totalSum = 0;
-    private long globalMin = Long.MAX_VALUE;
-    private long globalMax = Long.MIN_VALUE;
-    
-    public TimingStats(int windowSize) {
-        this.windowSize = windowSize;
-        this.buckets = new BucketData[windowSize];
-        // Initialize all buckets
-        for (int i = 0; i < windowSize; i++) {
-            buckets[i] = new BucketData();
+
+    // Returns the thread's stripe, creating it on first use (once per thread per function)
+    private Stripe getStripe(int index) {
+        Stripe[] current = stripes;
+        if (index < current.length && current[index] != null) {
+            return current[index];
         }
-    }
-    
-    public synchronized void addSample(long startTimeNs, long durationNanos) {
-        // Advance buckets based on current time (not sample start time) to keep buckets synchronized
-        // This ensures all TimingStats instances advance at the same rate
-        long currentTimeNs = System.nanoTime();
-        long timeSinceLastBucket = currentTimeNs - lastBucketTime;
-        if (timeSinceLastBucket >= BUCKET_TIME_NS) {
-            // Calculate how many buckets to advance (could be more than 1 if time jumped)
-            int bucketsToAdvance = (int) (timeSinceLastBucket / BUCKET_TIME_NS);
-            // Cap at windowSize to avoid clearing all buckets at once
-            if (bucketsToAdvance > windowSize) {
-                bucketsToAdvance = windowSize;
-            }
-            // Advance each bucket
-            for (int i = 0; i < bucketsToAdvance; i++) {
-                advanceTimeBucket();
+        synchronized (this) {
+            current = stripes;
+            if (index >= current.length) {
+                current = java.util.Arrays.copyOf(current, index + 1);
+            } else if (current[index] != null) {
+                return current[index];
+            } else {
+                current = current.clone();
             }
-            lastBucketTime = currentTimeNs;
+            Stripe stripe = new Stripe();
+            current[index] = stripe;
+            stripes = current;
+            return stripe;
         }
-        
-        // Get current timestamp bucket (holds samples from the last 50ms)
-        BucketData currentBucket = buckets[currentBucketIndex];
-        
-        // Add sample to current timestamp bucket
-        currentBucket.count++;
-        currentBucket.sum += durationNanos;
-        if (durationNanos < currentBucket.min) currentBucket.min = durationNanos;
-        if (durationNanos > currentBucket.max) currentBucket.max = durationNanos;
-        // Note: bucketEndTimeNs will be set when this bucket is advanced
-        
-        // Update global aggregated stats across all timestamp buckets
-        totalCount++;
-        totalSum += durationNanos;
-        if (durationNanos < globalMin) globalMin = durationNanos;
-        if (durationNanos > globalMax) globalMax = durationNanos;
     }
-    
-    // Move to next timestamp bucket (called when 50ms of wall-clock time has elapsed)
-    // DON'T clear the current bucket - it may still be queried within the time window
-    // Only clear a bucket when we're about to reuse it after a full round-robin cycle
-    private void advanceTimeBucket() {
-        long currentTimeNs = System.nanoTime();
-        
-        // Mark the current bucket's time window as ended (but keep its data!)
-        BucketData currentBucket = buckets[currentBucketIndex];
-        int oldIndex = currentBucketIndex;
-        long oldCount = currentBucket.count;
-        
-        // Record when this bucket's time window ended
-        if (currentBucket.count > 0) {
-            currentBucket.bucketEndTimeNs = currentTimeNs;
+
+    // Calls (scaled by sampling weight) missing from percentile histograms since startup
+    public static long getLateHistogramCalls() {
+        return lateHistogramCalls.sum();
+    }
+
+    // Aggregates over everything still held within the longest supported window
+    private WindowStats getAllTimeStats() {
+        WindowStats stats = getWindowStats(MAX_WINDOW_MS, null);
+        return stats != null ? stats : new WindowStats(0, 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    public double getAverage() {
+        return getAllTimeStats().getAverageMs();
+    }
+
+    public double getMin() {
+        return getAllTimeStats().getMinMs();
+    }
+
+    public double getMax() {
+        return getAllTimeStats().getMaxMs();
+    }
+
+    public int getCount() {
+        return (int) getAllTimeStats().count;
+    }
+
+    public double getTotalSum() {
+        return getAllTimeStats().getTotalSumMs();
+    }
+
+    // Get aggregated stats for the specified time window, merged across all stripes
+    // Windows up to 5s are exact to the 50ms tick; longer windows take the current partial second
+    // from the tick tier and round their oldest edge to the nearest second (or minute, past 2min)
+    // Returns null if there's no data in the window (allows efficient filtering)
+    // Read-only: cells older than the window are skipped by comparing their stored epoch, never cleared here
+    public WindowStats getWindowStats(long windowDurationMS, String functionName) {
+        long currentTick = EpochClock.advance();
+        long numTicks = EpochClock.ticksFor(Math.min(windowDurationMS, MAX_WINDOW_MS));
+
+        WindowStats merged = new WindowStats(0, 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+        collectWindow(currentTick, numTicks, merged);
+
+        // Return null if no data in window (allows efficient filtering)
+        if (merged.count == 0) {
+            return null;
         }
-        
-        // Move to next bucket (round-robin)
-        int newIndex = (currentBucketIndex + 1) % windowSize;
-        BucketData newBucket = buckets[newIndex];
-        
-        // Only clear the new bucket if it's being reused and is definitely too old
-        // A bucket is too old if it's older than the maximum possible query window
-        if (newBucket.count > 0 && newBucket.bucketEndTimeNs > 0) {
-            long ageNs = currentTimeNs - newBucket.bucketEndTimeNs;
-            long maxWindowNs = windowSize * BUCKET_TIME_NS; // Maximum possible query window
-            if (ageNs > maxWindowNs) {
-                // This bucket is definitely too old (older than max window), safe to clear
-                totalCount -= newBucket.count;
-                totalSum -= newBucket.sum;
-                newBucket.count = 0;
-                newBucket.sum = 0;
-                newBucket.min = Long.MAX_VALUE;
-                newBucket.max = Long.MIN_VALUE;
-                // Keep bucketEndTimeNs for time calculations
+        return merged;
+    }
+
+    // Merge ticks (currentTick - numTicks, currentTick] into result; for callers that scan many
+    // functions against one clock reading and reuse a single WindowStats
+    void collectWindow(long currentTick, long numTicks, WindowStats result) {
+        for (Stripe stripe : stripes) {
+            if (stripe != null) {
+                stripe.collectWindow(currentTick, numTicks, result);
             }
         }
-        
-        currentBucketIndex = newIndex;
-        
-        // DEBUG: Log bucket advancement (only called for Gauges functions, so always log if has data)
-        // if (oldCount > 0) {
-        //     DebugLogger.log(String.format("advanceBucket: bucket[%d] had count=%d, set endTime=%d, newIdx=%d",
-        //         oldIndex, oldCount, currentBucket.bucketEndTimeNs, currentBucketIndex));
-        // }
-            
-        // Recalculate global min/max if needed (only if we actually cleared a bucket)
-        if (newBucket.count == 0 && (newBucket.min == globalMin || newBucket.max == globalMax)) {
-            recalculateGlobalMinMax();
-        }
     }
-    
-    private void recalculateGlobalMinMax() {
-        globalMin = Long.MAX_VALUE;
-        globalMax = Long.MIN_VALUE;
-        for (BucketData bucket : buckets) {
-            if (bucket.count > 0) {
-                if (bucket.min < globalMin) globalMin = bucket.min;
-                if (bucket.max > globalMax) globalMax = bucket.max;
+
+    // Merge the latency histogram for the specified time window into `out` (LatencyHistogram.BIN_COUNT entries)
+    // Histograms live in the seconds/minutes tiers, so the window is rounded to whole seconds
+    // (including the current one) even when it's shorter than 5s
+    public void collectHistogram(long windowDurationMS, long[] out) {
+        long currentTick = EpochClock.now();
+        long numTicks = EpochClock.ticksFor(Math.min(windowDurationMS, MAX_WINDOW_MS));
+        for (Stripe stripe : stripes) {
+            if (stripe != null) {
+                stripe.collectHistogram(currentTick, numTicks, out);
             }
         }
     }
-    
-    public synchronized double getAverage() {
-        return totalCount > 0 ? (totalSum / 1_000_000.0) / totalCount : 0.0;
-    }
-    
-    public synchronized double getMin() {
-        return globalMin == Long.MAX_VALUE ? 0.0 : globalMin / 1_000_000.0;
-    }
-    
-    public synchronized double getMax() {
-        return globalMax == Long.MIN_VALUE ? 0.0 : globalMax / 1_000_000.0;
+
+    // Downsample the last historyMS into out.length equal bins (oldest first), adding each bin's
+    // average total (or self) nanoseconds per tick or second; used for OSD sparklines
+    // Up to 5s comes from the tick tier, longer histories from the seconds tier (at most 2 minutes)
+    public void collectHistory(long historyMS, long[] out, boolean bySelfTime) {
+        long currentTick = EpochClock.now();
+        long numTicks = EpochClock.ticksFor(historyMS);
+        for (Stripe stripe : stripes) {
+            if (stripe != null) {
+                stripe.collectHistory(currentTick, numTicks, out, bySelfTime);
+            }
+        }
     }
-    
-    public synchronized int getCount() {
-        return (int) totalCount;
+
+    // Per-thread set of rollup tiers, written only by its owning thread
+    private static class Stripe {
+        private final CellRing ticks = new CellRing(TICK_RETENTION, false, null);
+        private final CellRing seconds = new CellRing(SECOND_RETENTION, true, lateHistogramCalls);
+        private final CellRing minutes = new CellRing(MINUTE_RETENTION, true, null);
+
+        long addSample(long tick, long durationNanos, long selfNanos, int weight) {
+            int bin = LatencyHistogram.binFor(durationNanos);
+            ticks.add(tick, durationNanos, selfNanos, weight, bin);
+            long secondSum = seconds.add(tick / TICKS_PER_SECOND, durationNanos, selfNanos, weight, bin);
+            minutes.add(tick / TICKS_PER_MINUTE, durationNanos, selfNanos, weight, bin);
+            return secondSum;
+        }
+
+        void collectHistogram(long currentTick, long numTicks, long[] out) {
+            long lowerTick = currentTick - numTicks + 1;
+            long currentSecond = currentTick / TICKS_PER_SECOND;
+            if (numTicks <= (long) SECOND_RETENTION * TICKS_PER_SECOND) {
+                long firstSecond = Math.min((lowerTick + TICKS_PER_SECOND / 2) / TICKS_PER_SECOND, currentSecond);
+                seconds.collectHistogram(firstSecond, currentSecond, out);
+                return;
+            }
+            long currentMinute = currentTick / TICKS_PER_MINUTE;
+            seconds.collectHistogram(currentMinute * 60, currentSecond, out);
+            long firstMinute = (lowerTick + TICKS_PER_MINUTE / 2) / TICKS_PER_MINUTE;
+            minutes.collectHistogram(firstMinute, currentMinute - 1, out);
+        }
+
+        void collectHistory(long currentTick, long numTicks, long[] out, boolean bySelfTime) {
+            if (numTicks <= TICK_RETENTION) {
+                ticks.collectSeries(currentTick - numTicks + 1, currentTick, out, bySelfTime);
+                return;
+            }
+            long currentSecond = currentTick / TICKS_PER_SECOND;
+            long numSeconds = Math.min((numTicks + TICKS_PER_SECOND - 1) / TICKS_PER_SECOND, SECOND_RETENTION);
+            seconds.collectSeries(currentSecond - numSeconds + 1, currentSecond, out, bySelfTime);
+        }
+
+        // Add this stripe's data for ticks (currentTick - numTicks, currentTick] into result
+        void collectWindow(long currentTick, long numTicks, WindowStats result) {
+            if (numTicks <= TICK_RETENTION) {
+                ticks.collect(currentTick - numTicks + 1, currentTick, result);
+                return;
+            }
+
+            long lowerTick = currentTick - numTicks + 1;
+            long currentSecond = currentTick / TICKS_PER_SECOND;
+
+            // Current partial second at full resolution
+            ticks.collect(currentSecond * TICKS_PER_SECOND, currentTick, result);
+
+            if (numTicks <= (long) SECOND_RETENTION * TICKS_PER_SECOND) {
+                long firstSecond = (lowerTick + TICKS_PER_SECOND / 2) / TICKS_PER_SECOND;
+                seconds.collect(firstSecond, currentSecond - 1, result);
+                return;
+            }
+
+            // Complete seconds of the current minute, then whole minutes back to the window start
+            long currentMinute = currentTick / TICKS_PER_MINUTE;
+            seconds.collect(currentMinute * 60, currentSecond - 1, result);
+            long firstMinute = (lowerTick + TICKS_PER_MINUTE / 2) / TICKS_PER_MINUTE;
+            minutes.collect(firstMinute, currentMinute - 1, result);
+        }
     }
-    
-    public synchronized double getTotalSum() {
-        return totalSum / 1_000_000.0; // Convert to milliseconds
+
+    // Struct-of-arrays bucket storage: one primitive column per field, one cell per active epoch
+    // Swapped as a whole on growth so readers never see columns of different lengths
+    private static class Columns {
+        final long[] epochs; // Tier epoch (tick, second or minute) each cell holds data for
+        final long[] counts;
+        final long[] sums;
+        final long[] selfSums;
+        final long[] mins;
+        final long[] maxs;
+        // Each cell's histogram entries in CellRing.histPool: absolute start position and length;
+        // null for tiers without histograms
+        final long[] histStarts;
+        final int[] histLens;
+
+        Columns(int capacity, boolean withHistograms) {
+            epochs = new long[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+            selfSums = new long[capacity];
+            mins = new long[capacity];
+            maxs = new long[capacity];
+            histStarts = withHistograms ? new long[capacity] : null;
+            histLens = withHistograms ? new int[capacity] : null;
+        }
+
+        int capacity() {
+            return epochs.length;
+        }
     }
-    
-    // Get aggregated stats for buckets within the specified time window
-    // Uses round-robin nature to efficiently aggregate only relevant buckets
-    // Returns null if there's no data in the window (allows efficient filtering)
-    // Read-only: does not modify buckets (only addSample advances buckets)
-    // Calculates which buckets to look at based on current time vs lastBucketTime
-    public synchronized WindowStats getWindowStats(long windowDurationMS, String functionName) {
-        // Don't advance buckets here - that should only happen in addSample
-        // Advancing here would change lastBucketTime and break time calculations for old buckets
-        long currentTimeNs = System.nanoTime();
-        
-        // Calculate how many buckets represent this time window
-        // BUCKET_TIME_NS is in nanoseconds, windowDurationMS is in milliseconds
-        // Convert: windowDurationMS * 1_000_000 / BUCKET_TIME_NS
-        int numBuckets = (int) ((windowDurationMS * 1_000_000L) / BUCKET_TIME_NS);
-        // Cap at windowSize
-        if (numBuckets > windowSize) {
-            numBuckets = windowSize;
+
+    // Chronological ring of cells for one tier, written only by its owning thread
+    // Only epochs that actually received samples occupy a cell, and the ring only grows
+    // while its oldest cell is still within retention, so capacity tracks the function's
+    // real activity (up to retention cells for something called in every epoch)
+    // Samples mostly arrive in epoch order, but not always (a caller is recorded after its
+    // callees, with an earlier start): a late sample goes into its epoch's cell if there is
+    // one, otherwise into the oldest newer cell, since cells can't be inserted mid-ring
+    // Histogram entries live in a separate ring of (bin, count) pairs that fills in cell order:
+    // the newest cell's entries are always at its end, and dropping the oldest cell frees its
+    // entries at the start, so the pool only grows with the number of distinct bins retained.
+    // Opening a cell makes sure the pool has room for a full cell (BIN_COUNT entries), so
+    // recording into an existing cell never allocates; a late sample whose bin an older cell
+    // doesn't have is left out of the histograms rather than counted in another bin
+    private static class CellRing {
+        private static final int HIST_BIN_SHIFT = 56; // Entry = bin << HIST_BIN_SHIFT | count
+        private static final long HIST_COUNT_MASK = (1L << HIST_BIN_SHIFT) - 1;
+
+        private final int retention; // Number of epochs to keep
+        private final boolean withHistograms;
+        private final LongAdder lateCalls; // Counts calls left out of the histograms, or null
+        private volatile Columns columns; // null until the first sample
+        private int head = -1; // Index of the newest cell
+        private int size = 0; // Number of cells in use, ending at head
+        private volatile long[] histPool; // Indexed by absolute position & (length - 1); null until the first sample
+        private long histTail = 0; // Absolute position of the next entry
+
+        CellRing(int retention, boolean withHistograms, LongAdder lateCalls) {
+            this.retention = retention;
+            this.withHistograms = withHistograms;
+            this.lateCalls = lateCalls;
         }
-        // Ensure at least 1 bucket is checked (for very small windows)
-        if (numBuckets < 1) {
-            numBuckets = 1;
+
+        // Returns the updated sum of the epoch's cell
+        long add(long epoch, long durationNanos, long selfNanos, int weight, int bin) {
+            Columns c = columns;
+            if (c == null) {
+                c = new Columns(Math.min(INITIAL_CAPACITY, retention), withHistograms);
+                columns = c;
+            }
+
+            int h = head;
+            if (size > 0 && c.epochs[h] >= epoch) {
+                if (c.epochs[h] - epoch >= retention) {
+                    return 0; // Late past retention: no window can include it
+                }
+                // The newest cell, or an older one for a late sample: update in place
+                int idx = h;
+                for (int i = 1; i < size && c.epochs[idx] > epoch; i++) {
+                    int prev = (idx - 1 + c.capacity()) % c.capacity();
+                    if (c.epochs[prev] < epoch) {
+                        break;
+                    }
+                    idx = prev;
+                }
+                c.counts[idx] += weight;
+                c.sums[idx] += durationNanos * weight;
+                c.selfSums[idx] += selfNanos * weight;
+                if (durationNanos < c.mins[idx]) c.mins[idx] = durationNanos;
+                if (durationNanos > c.maxs[idx]) c.maxs[idx] = durationNanos;
+                if (c.histStarts != null) addToHistogram(c, idx, bin, weight);
+                return c.sums[idx];
+            }
+
+            // New epoch: reuse the oldest cell if it has fallen out of retention, otherwise grow
+            if (size == c.capacity()) {
+                int oldest = (h - size + 1 + c.capacity()) % c.capacity();
+                if (epoch - c.epochs[oldest] >= retention || c.capacity() >= retention) {
+                    size--;
+                } else {
+                    c = grow(c);
+                    h = head;
+                }
+            }
+
+            h = (h + 1) % c.capacity();
+            c.epochs[h] = epoch;
+            c.counts[h] = weight;
+            c.sums[h] = durationNanos * weight;
+            c.selfSums[h] = selfNanos * weight;
+            c.mins[h] = durationNanos;
+            c.maxs[h] = durationNanos;
+            head = h;
+            size++;
+            if (c.histStarts != null) {
+                c.histStarts[h] = histTail;
+                c.histLens[h] = 0;
+                reserveHistogram(c);
+                addToHistogram(c, h, bin, weight);
+            }
+            return c.sums[h];
         }
-        
-        // Calculate the time window boundaries in nanoseconds
-        long windowDurationNs = windowDurationMS * 1_000_000L;
-        long windowStartTimeNs = currentTimeNs - windowDurationNs;
-        
-        long windowCount = 0;
-        long windowSum = 0;
-        long windowMin = Long.MAX_VALUE;
-        long windowMax = Long.MIN_VALUE;
-        
-        // DEBUG: Print initial state (only for Gauges functions)
-        // boolean shouldDebug = (functionName != null && functionName.contains("Gauges"));
-        // if (shouldDebug) {
-        //     DebugLogger.log(String.format("%s: window=%dms, currentIdx=%d, lastBucketTime=%d, windowStart=%d",
-        //         functionName, windowDurationMS, currentBucketIndex, lastBucketTime, windowStartTimeNs));
-        // }
-        boolean shouldDebug = false;
-        
-        // Check all buckets and include those whose time window overlaps with the requested window
-        // We need to check enough buckets to cover the full time window
-        // Check all buckets to ensure we don't miss any (buckets wrap around in round-robin fashion)
-        int bucketsChecked = 0;
-        int bucketsWithData = 0;
-        int bucketsIncluded = 0;
-        for (int i = 0; i < windowSize; i++) {
-            // Calculate bucket index going backwards from current
-            // i=0 is current bucket, i=1 is previous, etc.
-            int bucketIndex = (currentBucketIndex - i + windowSize) % windowSize;
-            BucketData bucket = buckets[bucketIndex];
-            bucketsChecked++;
-            
-            // Calculate time window even for empty buckets (for early exit optimization)
-            long bucketWindowEndNs;
-            long bucketWindowStartNs;
-            
-            if (i == 0) {
-                // Current bucket: always use lastBucketTime to currentTimeNs (even if bucketEndTimeNs is set)
-                // The current bucket is still active and hasn't been advanced yet
-                // For window queries, only include current bucket if lastBucketTime is within the window
-                // If lastBucketTime is too old, the current bucket shouldn't be included
-                if (lastBucketTime < windowStartTimeNs) {
-                    // Current bucket started before the window, so it's outside the window
-                    // Skip it (but don't break, as older buckets might still be in the window)
-                    continue;
+
+        // Count `weight` samples in `bin` of cell idx
+        // Only the newest cell's entries end the pool, so only it can take a new bin; for an
+        // older cell (a late sample) a missing bin means the sample stays out of the histograms
+        private void addToHistogram(Columns c, int idx, int bin, int weight) {
+            long[] pool = histPool;
+            long start = c.histStarts[idx];
+            int len = c.histLens[idx];
+            int mask = pool.length - 1;
+            for (int i = len - 1; i >= 0; i--) {
+                int pos = (int) ((start + i) & mask);
+                if ((int) (pool[pos] >>> HIST_BIN_SHIFT) == bin) {
+                    pool[pos] += weight;
+                    return;
                 }
-                bucketWindowStartNs = lastBucketTime;
-                bucketWindowEndNs = currentTimeNs;
-            } else if (bucket.bucketEndTimeNs > 0) {
-                // Bucket has an end timestamp - use it to determine the window
-                bucketWindowEndNs = bucket.bucketEndTimeNs;
-                bucketWindowStartNs = bucketWindowEndNs - BUCKET_TIME_NS;
-            } else {
-                // Previous buckets without end timestamp: calculate from current time going backwards
-                // Use currentTimeNs as reference, not lastBucketTime (which might be stale)
-                // Bucket i was active i*50ms ago
-                bucketWindowEndNs = currentTimeNs - ((i - 1) * BUCKET_TIME_NS);
-                bucketWindowStartNs = bucketWindowEndNs - BUCKET_TIME_NS;
             }
-            
-            // Early exit: if we've gone far enough back that no bucket can overlap
-            // Check if this bucket is completely before the window start
-            // A bucket is too old if its end time is before the window start
-            if (bucketWindowEndNs <= windowStartTimeNs) {
-                // This bucket is completely before the window, and all subsequent buckets will be even older
-                // We can break early since buckets are ordered by time (newest first)
-                break;
+            if (idx != head) {
+                if (lateCalls != null) {
+                    lateCalls.add(weight);
+                }
+                return;
             }
-            
-            // DEBUG: Log bucket contents when enumerating (if debug enabled)
-            // if (shouldDebug) {
-            //     String minStr = (bucket.min == Long.MAX_VALUE) ? "N/A" : String.valueOf(bucket.min);
-            //     String maxStr = (bucket.max == Long.MIN_VALUE) ? "N/A" : String.valueOf(bucket.max);
-            //     DebugLogger.log(String.format("  Enumerating Bucket[%d] (i=%d): count=%d, sum=%d, min=%s, max=%s, endTime=%d, window=[%d,%d]",
-            //         bucketIndex, i, bucket.count, bucket.sum, minStr, maxStr, bucket.bucketEndTimeNs,
-            //         bucketWindowStartNs, bucketWindowEndNs));
-            // }
-            
-            if (bucket.count == 0) {
-                continue; // Skip empty buckets (but we've already checked for early exit)
+            // Room was reserved when the cell was opened
+            pool[(int) (histTail & mask)] = ((long) bin << HIST_BIN_SHIFT) | weight;
+            histTail++;
+            c.histLens[idx] = len + 1;
+        }
+
+        // Called when a new newest cell is opened: make room for all of its possible entries
+        private void reserveHistogram(Columns c) {
+            long liveStart = c.histStarts[(head - size + 1 + c.capacity()) % c.capacity()];
+            long needed = histTail - liveStart + LatencyHistogram.BIN_COUNT;
+            long[] pool = histPool;
+            if (pool == null || needed > pool.length) {
+                growHistPool(liveStart, Integer.highestOneBit((int) needed - 1) << 1);
             }
-            bucketsWithData++;
-            
-            // Include bucket if its time window overlaps with the requested window
-            // Window is [windowStartTimeNs, currentTimeNs]
-            // Bucket overlaps if: bucket ends after window starts AND bucket starts before window ends
-            // This ensures at least some part of the bucket falls within the window
-            // More strictly: bucket must have some time within [windowStartTimeNs, currentTimeNs]
-            boolean overlaps = bucketWindowEndNs > windowStartTimeNs && bucketWindowStartNs < currentTimeNs;
-            
-            if (overlaps) {
-                bucketsIncluded++;
-                    windowCount += bucket.count;
-                    windowSum += bucket.sum;
-                    if (bucket.min < windowMin) windowMin = bucket.min;
-                    if (bucket.max > windowMax) windowMax = bucket.max;
-                // if (shouldDebug) {
-                //     DebugLogger.log(String.format("  Bucket[%d] (i=%d): INCLUDED (total=%d)",
-                //         bucketIndex, i, windowCount));
-                // }
-            } // else if (shouldDebug) {
-            //     DebugLogger.log(String.format("  Bucket[%d] (i=%d): NO OVERLAP [%d,%d] vs [%d,%d]",
-            //         bucketIndex, i, bucketWindowStartNs, bucketWindowEndNs, windowStartTimeNs, currentTimeNs));
-            // }
         }
-        
-        // DEBUG: Print summary (only if debug enabled)
-        // if (shouldDebug) {
-        //     DebugLogger.log(String.format("Result: checked=%d, withData=%d, included=%d, count=%d",
-        //         bucketsChecked, bucketsWithData, bucketsIncluded, windowCount));
-        // }
-        
-        // Return null if no data in window (allows efficient filtering)
-        if (windowCount == 0) {
-            return null;
+
+        // Replace the pool with one of `capacity` (a power of two), keeping live entries (from
+        // liveStart) at the same absolute positions
+        private void growHistPool(long liveStart, int capacity) {
+            long[] old = histPool;
+            long[] pool = new long[capacity];
+            if (old != null) {
+                for (long p = liveStart; p < histTail; p++) {
+                    pool[(int) (p & (pool.length - 1))] = old[(int) (p & (old.length - 1))];
+                }
+            }
+            histPool = pool;
+        }
+
+        // Double the capacity (up to retention), laying cells out oldest-first from index 0
+        private Columns grow(Columns old) {
+            int oldCapacity = old.capacity();
+            Columns c = new Columns(Math.min(oldCapacity * 2, retention), withHistograms);
+            int first = (head - size + 1 + oldCapacity) % oldCapacity;
+            for (int i = 0; i < size; i++) {
+                int src = (first + i) % oldCapacity;
+                c.epochs[i] = old.epochs[src];
+                c.counts[i] = old.counts[src];
+                c.sums[i] = old.sums[src];
+                c.selfSums[i] = old.selfSums[src];
+                c.mins[i] = old.mins[src];
+                c.maxs[i] = old.maxs[src];
+                if (c.histStarts != null) {
+                    c.histStarts[i] = old.histStarts[src];
+                    c.histLens[i] = old.histLens[src];
+                }
+            }
+            head = size - 1;
+            columns = c;
+            return c;
+        }
+
+        // Add cells for epochs [fromEpoch, toEpoch] into result
+        void collect(long fromEpoch, long toEpoch, WindowStats result) {
+            Columns c = columns;
+            if (c == null || fromEpoch > toEpoch) {
+                return;
+            }
+            int capacity = c.capacity();
+            int h = head;
+            int n = Math.min(size, capacity);
+            // Walk newest to oldest; stop at the first cell older than the range
+            for (int i = 0; i < n; i++) {
+                int idx = (h - i + capacity) % capacity;
+                long epoch = c.epochs[idx];
+                if (epoch < fromEpoch) {
+                    break;
+                }
+                if (epoch <= toEpoch && c.counts[idx] > 0) {
+                    result.merge(c.counts[idx], c.sums[idx], c.selfSums[idx], c.mins[idx], c.maxs[idx]);
+                }
+            }
+        }
+
+        // Spread sums of cells for epochs [fromEpoch, toEpoch] over the out.length bins of that range
+        // Each epoch is split between the bins it overlaps, in proportion to the overlap, and scaled
+        // so a bin gets the average per-epoch sum of the epochs it covers: a steady load draws a flat
+        // line whether or not the number of epochs is a multiple of the number of bins
+        void collectSeries(long fromEpoch, long toEpoch, long[] out, boolean bySelfTime) {
+            Columns c = columns;
+            if (c == null || fromEpoch > toEpoch) {
+                return;
+            }
+            long span = toEpoch - fromEpoch + 1;
+            int bins = out.length;
+            long[] values = bySelfTime ? c.selfSums : c.sums;
+            int capacity = c.capacity();
+            int h = head;
+            int n = Math.min(size, capacity);
+            for (int i = 0; i < n; i++) {
+                int idx = (h - i + capacity) % capacity;
+                long epoch = c.epochs[idx];
+                if (epoch < fromEpoch) {
+                    break;
+                }
+                if (epoch <= toEpoch) {
+                    // In units of 1/(span * bins) of the range: the epoch covers [lo, lo + bins),
+                    // bin b covers [b * span, (b + 1) * span)
+                    long lo = (epoch - fromEpoch) * bins;
+                    long hi = lo + bins;
+                    for (int b = (int) (lo / span); b < bins && (long) b * span < hi; b++) {
+                        long overlap = Math.min(hi, (long) (b + 1) * span) - Math.max(lo, (long) b * span);
+                        out[b] += values[idx] * overlap / span;
+                    }
+                }
+            }
+        }
+
+        // Add histograms of cells for epochs [fromEpoch, toEpoch] into out
+        void collectHistogram(long fromEpoch, long toEpoch, long[] out) {
+            Columns c = columns;
+            long[] pool = histPool;
+            if (c == null || c.histStarts == null || pool == null || fromEpoch > toEpoch) {
+                return;
+            }
+            int mask = pool.length - 1;
+            int capacity = c.capacity();
+            int h = head;
+            int n = Math.min(size, capacity);
+            for (int i = 0; i < n; i++) {
+                int idx = (h - i + capacity) % capacity;
+                long epoch = c.epochs[idx];
+                if (epoch < fromEpoch) {
+                    break;
+                }
+                if (epoch <= toEpoch) {
+                    long start = c.histStarts[idx];
+                    int len = Math.min(c.histLens[idx], pool.length);
+                    for (int j = 0; j < len; j++) {
+                        long entry = pool[(int) ((start + j) & mask)];
+                        int bin = (int) (entry >>> HIST_BIN_SHIFT);
+                        if (bin < out.length) {
+                            out[bin] += entry & HIST_COUNT_MASK;
+                        }
+                    }
+                }
+            }
         }
-        
-        return new WindowStats(windowCount, windowSum, windowMin, windowMax);
     }
-    
+
     // Helper class for window statistics
     public static class WindowStats {
-        public final long count;
-        public final long sum;
-        public final long min;
-        public final long max;
+        public long count;
+        public long sum;
+        public long selfSum; // Sum of self (exclusive) time, excluding hooked child calls
+        public long min;
+        public long max;
+        public long[] histogram; // Filled in by PerformanceMonitor.getTopEntries for the returned rows only
         
-        public WindowStats(long count, long sum, long min, long max) {
+        public WindowStats(long count, long sum, long selfSum, long min, long max) {
             this.count = count;
             this.sum = sum;
+            this.selfSum = selfSum;
             this.min = min;
             this.max = max;
         }
+
+        void reset() {
+            count = 0;
+            sum = 0;
+            selfSum = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+            histogram = null;
+        }
+
+        void merge(long count, long sum, long selfSum, long min, long max) {
+            this.count += count;
+            this.sum += sum;
+            this.selfSum += selfSum;
+            if (min < this.min) this.min = min;
+            if (max > this.max) this.max = max;
+        }
         
         public double getTotalSumMs() {
             return sum / 1_000_000.0;
         }
+
+        public double getSelfSumMs() {
+            return selfSum / 1_000_000.0;
+        }
+
+        // Value of the metric the OSD/log are ranked by, in nanoseconds
+        public long getRankSum(boolean bySelfTime) {
+            return bySelfTime ? selfSum : sum;
+        }
         
         public double getAverageMs() {
             return count > 0 ? (sum / 1_000_000.0) / count : 0.0;
@@ -325,5 +560,13 @@ public class TimingStats {
         public double getMaxMs() {
             return max == Long.MIN_VALUE ? 0.0 : max / 1_000_000.0;
         }
+
+        // Percentile (0..100) in milliseconds, 0 if no histogram was collected
+        public double getPercentileMs(double percentile) {
+            if (histogram == null) {
+                return 0.0;
+            }
+            return LatencyHistogram.percentileNanos(histogram, percentile, min, max) / 1_000_000.0;
+        }
     }
 }
@@ -0,0 +1,154 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bounded set of functions that can possibly make it into the OSD/log top lists
+// Maintained as samples land: a function is admitted once its cost in the current second
+// reaches the per-second cost of the weakest retained candidate. Readers only rank the
+// candidates, so the cold tail of rarely-called closures is never touched on refresh.
+// Each reader (consumer) ranks over its own window, so each has its own admission threshold
+// and its own claim on the candidates; a candidate is dropped once no active consumer keeps it.
+// The map is the source of truth: TimingStats.topKConsumers only changes inside the map's
+// per-key compute, so a function can't end up flagged without being a candidate.
+public class TopKIndex {
+    public static final int CAPACITY = 256; // Candidates kept after each refresh (well above osdTopN / log top 50)
+    private static final int MAX_CANDIDATES = 4 * CAPACITY; // Hard cap on admissions between refreshes
+
+    // Consumers, as bits of TimingStats.topKConsumers
+    public static final int OSD = 0;
+    public static final int LOG = 1;
+    private static final int CONSUMERS = 2;
+    private static final int ALL = (1 << CONSUMERS) - 1;
+    private static final long MIN_INACTIVE_NS = 5_000_000_000L; // A consumer idle for 2 intervals (at least this) stops holding candidates
+
+    private static final ConcurrentHashMap<Integer, TimingStats> candidates = new ConcurrentHashMap<>();
+
+    // Refresh bookkeeping, guarded by the class lock
+    private static final long[] thresholds = new long[CONSUMERS]; // Per-second cost of each consumer's weakest retained candidate
+    private static final long[] lastRefreshNs = new long[CONSUMERS];
+    private static final long[] refreshIntervalNs = new long[CONSUMERS];
+
+    // Published for the recording path: per-consumer admission thresholds (Long.MAX_VALUE for
+    // inactive consumers, all 0 before any refresh) and the mask of active consumers
+    private static volatile long[] admission = new long[CONSUMERS];
+    private static volatile int activeConsumers = ALL;
+
+    // Called from the recording path with the function's cost so far in the current second
+    public static void offer(int key, TimingStats stats, long recentSumNs) {
+        if (stats.topKConsumers != 0) {
+            return; // Already a candidate
+        }
+        long[] current = admission;
+        int consumers = 0;
+        for (int c = 0; c < CONSUMERS; c++) {
+            if (recentSumNs >= current[c]) {
+                consumers |= 1 << c;
+            }
+        }
+        if (consumers == 0 || candidates.size() >= MAX_CANDIDATES) {
+            return;
+        }
+        int admitted = consumers;
+        candidates.compute(key, (k, existing) -> {
+            if (existing != null) {
+                return existing;
+            }
+            stats.topKConsumers = admitted;
+            return stats;
+        });
+    }
+
+    public static Map<Integer, TimingStats> getCandidates() {
+        return candidates;
+    }
+
+    // Start of a consumer's ranking pass; marks it active
+    public static synchronized void beginRefresh(int consumer) {
+        long now = System.nanoTime();
+        if (lastRefreshNs[consumer] != 0) {
+            refreshIntervalNs[consumer] = now - lastRefreshNs[consumer];
+        }
+        lastRefreshNs[consumer] = now;
+        publish(now);
+    }
+
+    // Keep a candidate the consumer ranked within CAPACITY
+    public static void retain(int consumer, int key, TimingStats stats) {
+        update(consumer, key, stats, true);
+    }
+
+    // Drop the consumer's claim on a candidate that went cold or fell below CAPACITY; it's
+    // evicted once no active consumer keeps it, and can be re-admitted by a later sample
+    public static void release(int consumer, int key, TimingStats stats) {
+        update(consumer, key, stats, false);
+    }
+
+    // Drop a candidate whatever consumers keep it, e.g. one left over from before a reset
+    public static void evict(int key, TimingStats stats) {
+        candidates.computeIfPresent(key, (k, existing) -> {
+            if (existing != stats) {
+                return existing;
+            }
+            stats.topKConsumers = 0;
+            return null;
+        });
+    }
+
+    private static void update(int consumer, int key, TimingStats stats, boolean keep) {
+        int bit = 1 << consumer;
+        int active = activeConsumers;
+        int current = stats.topKConsumers;
+        int wanted = (keep ? current | bit : current & ~bit) & active;
+        if (wanted == current) {
+            return;
+        }
+        candidates.computeIfPresent(key, (k, existing) -> {
+            if (existing != stats) {
+                return existing;
+            }
+            int consumers = (keep ? stats.topKConsumers | bit : stats.topKConsumers & ~bit) & active;
+            stats.topKConsumers = consumers;
+            return consumers == 0 ? null : stats;
+        });
+    }
+
+    // Set from the consumer's CAPACITY-th ranked candidate after a refresh (0 while there are fewer candidates)
+    public static synchronized void setAdmissionThreshold(int consumer, long windowSumNs, long windowDurationMS) {
+        long seconds = Math.max(1, windowDurationMS / 1000);
+        thresholds[consumer] = windowSumNs / seconds;
+        publish(System.nanoTime());
+    }
+
+    // Caller holds the class lock
+    private static void publish(long now) {
+        long[] next = new long[CONSUMERS];
+        int active = 0;
+        for (int c = 0; c < CONSUMERS; c++) {
+            long idleLimit = Math.max(MIN_INACTIVE_NS, 2 * refreshIntervalNs[c]);
+            if (lastRefreshNs[c] != 0 && now - lastRefreshNs[c] <= idleLimit) {
+                active |= 1 << c;
+                next[c] = thresholds[c];
+            } else {
+                next[c] = Long.MAX_VALUE;
+            }
+        }
+        if (active == 0) {
+            active = ALL;
+            next = new long[CONSUMERS];
+        }
+        admission = next;
+        activeConsumers = active;
+    }
+
+    public static synchronized void clear() {
+        for (Integer key : candidates.keySet()) {
+            candidates.computeIfPresent(key, (k, existing) -> {
+                existing.topKConsumers = 0;
+                return null;
+            });
+        }
+        java.util.Arrays.fill(thresholds, 0);
+        publish(System.nanoTime());
+    }
+}
@@ -0,0 +1,274 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Offline analyzer for binary traces recorded in-game (see TraceRecorder)
+// Game-independent: runs from the analyzer jar built by java/build.gradle:
+//   java -jar ZBLuaPerfMon-analyzer.jar <trace.bin> [options]
+public class TraceAnalyzer {
+    private static final String USAGE = String.join("\n",
+        "Usage: TraceAnalyzer <trace.bin> [options]",
+        "  --top N          rows in the function table (default 50)",
+        "  --self           rank by self time instead of total time",
+        "  --from SEC       ignore calls that started before SEC seconds into the trace",
+        "  --to SEC         ignore calls that started after SEC seconds into the trace",
+        "  --match TEXT     only count functions whose File:Line contains TEXT",
+        "  --mods           add a per-mod rollup (by self time)",
+        "  --histogram      add a latency histogram of all counted calls",
+        "  --chrome FILE    also write the selected range as Chrome trace-event JSON",
+        "                   (open in chrome://tracing or ui.perfetto.dev)");
+
+    // Per-function totals over the selected range
+    static class Agg {
+        final int funcId;
+        long count;
+        long sum;
+        long selfSum;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        final long[] histogram = new long[LatencyHistogram.BIN_COUNT];
+
+        Agg(int funcId) {
+            this.funcId = funcId;
+        }
+
+        // weight: calls the record stands for when sampling; counts, sums and histogram are
+        // scaled by it (like TimingStats), min/max are not
+        void add(long durationNanos, long selfNanos, int weight) {
+            count += weight;
+            sum += durationNanos * weight;
+            selfSum += selfNanos * weight;
+            if (durationNanos < min) min = durationNanos;
+            if (durationNanos > max) max = durationNanos;
+            histogram[LatencyHistogram.binFor(durationNanos)] += weight;
+        }
+
+        long getRankSum(boolean bySelfTime) {
+            return bySelfTime ? selfSum : sum;
+        }
+
+        double getPercentileMs(double percentile) {
+            return LatencyHistogram.percentileNanos(histogram, percentile, min, max) / 1_000_000.0;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        String tracePath = null;
+        int topN = 50;
+        boolean bySelfTime = false;
+        long fromNs = Long.MIN_VALUE;
+        long toNs = Long.MAX_VALUE;
+        String match = null;
+        boolean showMods = false;
+        boolean showHistogram = false;
+        String chromePath = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--top":       topN = Integer.parseInt(args[++i]); break;
+                    case "--self":      bySelfTime = true; break;
+                    case "--from":      fromNs = (long) (Double.parseDouble(args[++i]) * 1e9); break;
+                    case "--to":        toNs = (long) (Double.parseDouble(args[++i]) * 1e9); break;
+                    case "--match":     match = args[++i]; break;
+                    case "--mods":      showMods = true; break;
+                    case "--histogram": showHistogram = true; break;
+                    case "--chrome":    chromePath = args[++i]; break;
+                    default:
+                        if (args[i].startsWith("--") || tracePath != null) {
+                            throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                        }
+                        tracePath = args[i];
+                }
+            }
+            if (tracePath == null) {
+                throw new IllegalArgumentException("No trace file given");
+            }
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage() != null ? e.getMessage() : "Bad arguments");
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        try {
+            analyze(new File(tracePath), topN, bySelfTime, fromNs, toNs, match, showMods, showHistogram);
+            if (chromePath != null) {
+                exportChrome(new File(tracePath), new File(chromePath), fromNs, toNs);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read trace: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static void analyze(File file, int topN, boolean bySelfTime, long fromNs, long toNs, String match,
+                        boolean showMods, boolean showHistogram) throws IOException {
+        Map<Integer, Agg> aggs = new HashMap<>();
+        Map<Integer, FileInfo> names;
+        long[] frames = {0};
+        long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+
+        try (TraceReader reader = new TraceReader(file)) {
+            names = reader.readNames();
+            System.out.println("Trace: " + file + " (" + reader.getRecordCount() + " records"
+                + (reader.written > reader.capacity ? ", ring wrapped; oldest " + (reader.written - reader.capacity) + " lost" : "")
+                + (names.isEmpty() ? ", no string table" : "") + ")");
+
+            reader.forEach((funcId, thread, kind, start, duration, self, weight) -> {
+                if (start < fromNs || start > toNs) {
+                    return;
+                }
+                if (kind == TraceFormat.KIND_FRAME) {
+                    frames[0]++;
+                    return;
+                }
+                if (kind != TraceFormat.KIND_CALL) {
+                    return;
+                }
+                range[0] = Math.min(range[0], start);
+                range[1] = Math.max(range[1], start + duration);
+                aggs.computeIfAbsent(funcId, Agg::new).add(duration, self, weight);
+            });
+        }
+
+        if (match != null) {
+            String needle = match;
+            aggs.values().removeIf(agg -> !getFileDisplay(names, agg.funcId).contains(needle));
+        }
+
+        List<Agg> sorted = new ArrayList<>(aggs.values());
+        sorted.sort((a, b) -> Long.compare(b.getRankSum(bySelfTime), a.getRankSum(bySelfTime)));
+        long totalCalls = 0;
+        for (Agg agg : sorted) {
+            totalCalls += agg.count;
+        }
+        String span = range[0] <= range[1]
+            ? String.format("%.3fs..%.3fs", range[0] / 1e9, range[1] / 1e9)
+            : "empty";
+
+        System.out.println("========== Statistics (top " + topN + " by " + (bySelfTime ? "self" : "total") + " time, "
+            + span + ", " + totalCalls + " calls, " + frames[0] + " frames) ==========");
+        System.out.println("Type      Total(ms)  Self(ms)   Avg(ms)    Min(ms)    Max(ms)    P50(ms)    P95(ms)    P99(ms)    Count  File:Line");
+        System.out.println("------------------------------------------------------------------------------------------------------------------");
+        for (int i = 0; i < Math.min(topN, sorted.size()); i++) {
+            Agg agg = sorted.get(i);
+            System.out.println(String.format(
+                "%-9s %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %9.3f  %5d  %s",
+                getType(names, agg.funcId),
+                agg.sum / 1_000_000.0,
+                agg.selfSum / 1_000_000.0,
+                agg.sum / 1_000_000.0 / agg.count,
+                agg.min / 1_000_000.0,
+                agg.max / 1_000_000.0,
+                agg.getPercentileMs(50),
+                agg.getPercentileMs(95),
+                agg.getPercentileMs(99),
+                agg.count,
+                getFileDisplay(names, agg.funcId)
+            ));
+        }
+
+        if (showMods) {
+            printModRollup(sorted, names);
+        }
+        if (showHistogram) {
+            printHistogram(sorted);
+        }
+    }
+
+    static void exportChrome(File file, File outFile, long fromNs, long toNs) throws IOException {
+        try (TraceReader reader = new TraceReader(file)) {
+            Map<Integer, FileInfo> names = reader.readNames();
+            long events = ChromeTraceWriter.write(reader, outFile, fromNs, toNs,
+                funcId -> getType(names, funcId) + ":" + getFileDisplay(names, funcId));
+            System.out.println();
+            System.out.println("Chrome trace: " + events + " events written to " + outFile);
+        }
+    }
+
+    private static void printModRollup(List<Agg> aggs, Map<Integer, FileInfo> names) {
+        Map<String, long[]> mods = new HashMap<>(); // mod -> {self, total, count, functions}
+        for (Agg agg : aggs) {
+            FileInfo info = names.get(agg.funcId);
+            String mod = info != null ? info.getModName() : FilePrefix.UNK.name();
+            long[] m = mods.computeIfAbsent(mod, k -> new long[4]);
+            m[0] += agg.selfSum;
+            m[1] += agg.sum;
+            m[2] += agg.count;
+            m[3]++;
+        }
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(mods.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        System.out.println();
+        System.out.println("========== Per-mod rollup (by self time) ==========");
+        System.out.println("Self(ms)    Total(ms)     Count  Funcs  Mod");
+        System.out.println("---------------------------------------------------");
+        for (Map.Entry<String, long[]> entry : sorted) {
+            long[] m = entry.getValue();
+            System.out.println(String.format("%9.3f  %9.3f  %8d  %5d  %s",
+                m[0] / 1_000_000.0, m[1] / 1_000_000.0, m[2], m[3], entry.getKey()));
+        }
+    }
+
+    private static void printHistogram(List<Agg> aggs) {
+        long[] merged = new long[LatencyHistogram.BIN_COUNT];
+        long peak = 0;
+        for (Agg agg : aggs) {
+            for (int bin = 0; bin < merged.length; bin++) {
+                merged[bin] += agg.histogram[bin];
+            }
+        }
+        int firstBin = -1;
+        int lastBin = -1;
+        for (int bin = 0; bin < merged.length; bin++) {
+            if (merged[bin] > 0) {
+                if (firstBin < 0) firstBin = bin;
+                lastBin = bin;
+                peak = Math.max(peak, merged[bin]);
+            }
+        }
+
+        System.out.println();
+        System.out.println("========== Latency histogram (all counted calls) ==========");
+        if (firstBin < 0) {
+            System.out.println("(no calls)");
+            return;
+        }
+        for (int bin = firstBin; bin <= lastBin; bin++) {
+            double lowMs = LatencyHistogram.binLowNanos(bin) / 1_000_000.0;
+            double highMs = (LatencyHistogram.binLowNanos(bin) + LatencyHistogram.binWidthNanos(bin)) / 1_000_000.0;
+            int barLength = (int) (merged[bin] * 50 / peak);
+            System.out.println(String.format("%9.3f - %9.3f ms  %9d  %s", lowMs, highMs, merged[bin], "#".repeat(barLength)));
+        }
+    }
+
+    private static String getType(Map<Integer, FileInfo> names, int funcId) {
+        FileInfo info = names.get(funcId);
+        if (info == null) {
+            return FilePrefix.UNK.name();
+        }
+        return info.prefix == FilePrefix.INTERNAL ? "LuaPerfMon" : info.prefix.name();
+    }
+
+    private static String getFileDisplay(Map<Integer, FileInfo> names, int funcId) {
+        FileInfo info = names.get(funcId);
+        if (info == null) {
+            return "(unknown " + Integer.toHexString(funcId) + ")";
+        }
+        // Don't show line number for internal entries or when line is 0 and path doesn't look like a file
+        if (info.line > 0 || (info.relativePath.contains("/") || info.relativePath.contains("\\"))) {
+            return info.relativePath + ":" + info.line;
+        }
+        return info.relativePath;
+    }
+}
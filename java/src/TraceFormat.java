@@ -0,0 +1,47 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+// On-disk layout of the binary trace files written by TraceRecorder
+// Kept free of game classes so offline tools can share it.
+//
+// <name>.bin is a ring of fixed-width records behind a fixed-size header, all little-endian:
+//   header:  int magic, int version, int recordSize, int reserved,
+//            long capacity (records), long written (records ever written; the ring wraps
+//            once written > capacity), long originNanos (System.nanoTime at start),
+//            long originEpochMs (wall clock at start), padding up to HEADER_SIZE
+//   record:  int funcId, short thread, short kind, long start (ns since origin),
+//            long duration (ns), long self (ns), int weight (calls the record stands for
+//            when sampling, 1 otherwise), int reserved
+// Version 1 records were 32 bytes, without the weight (every record counts once).
+// <name>.names is the string table: one "funcId<TAB>PREFIX<TAB>relativePath<TAB>line" per line.
+public final class TraceFormat {
+    public static final int MAGIC = 0x544C425A; // "ZBLT" read little-endian
+    public static final int VERSION = 2;
+    public static final int V1_RECORD_SIZE = 32;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int H_MAGIC = 0;
+    public static final int H_VERSION = 4;
+    public static final int H_RECORD_SIZE = 8;
+    public static final int H_CAPACITY = 16;
+    public static final int H_WRITTEN = 24;
+    public static final int H_ORIGIN_NANOS = 32;
+    public static final int H_ORIGIN_EPOCH_MS = 40;
+
+    public static final int RECORD_SIZE = 40;
+    public static final int R_FUNC_ID = 0;
+    public static final int R_THREAD = 4;
+    public static final int R_KIND = 6;
+    public static final int R_START = 8;
+    public static final int R_DURATION = 16;
+    public static final int R_SELF = 24;
+    public static final int R_WEIGHT = 32;
+
+    public static final short KIND_CALL = 0;  // A hooked Lua call
+    public static final short KIND_FRAME = 1; // Frame boundary; duration is the time since the previous one
+
+    public static final String DATA_SUFFIX = ".bin";
+    public static final String NAMES_SUFFIX = ".names";
+
+    private TraceFormat() {
+    }
+}
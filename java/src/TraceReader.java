@@ -0,0 +1,138 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+// Streaming reader for trace files written by TraceRecorder
+// Records are read through a fixed-size buffer in chronological order (oldest first, even
+// after the ring wrapped), so traces of any size can be read in constant memory.
+// Uses no game classes; shared by TraceAnalyzer.
+// Reads version 1 traces too, with every record's weight as 1.
+public class TraceReader implements AutoCloseable {
+    private static final int CHUNK_RECORDS = 32768; // 1MB read buffer
+
+    public interface Visitor {
+        // weight: calls the record stands for (the sampling rate when it was recorded)
+        void record(int funcId, int thread, int kind, long startNanos, long durationNanos, long selfNanos, int weight);
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final int recordSize;
+    private final boolean hasWeights;
+    public final long capacity;
+    public final long written;
+    public final long originEpochMs;
+
+    public TraceReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(TraceFormat.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, 0);
+        if (header.getInt(TraceFormat.H_MAGIC) != TraceFormat.MAGIC) {
+            channel.close();
+            throw new IOException("Not a ZBLuaPerfMon trace: " + file);
+        }
+        int version = header.getInt(TraceFormat.H_VERSION);
+        int recordSize = header.getInt(TraceFormat.H_RECORD_SIZE);
+        boolean current = version == TraceFormat.VERSION && recordSize == TraceFormat.RECORD_SIZE;
+        if (!current && !(version == 1 && recordSize == TraceFormat.V1_RECORD_SIZE)) {
+            channel.close();
+            throw new IOException("Unsupported trace version " + version + " (record size " + recordSize + "): " + file);
+        }
+        this.recordSize = recordSize;
+        this.hasWeights = current;
+        this.capacity = header.getLong(TraceFormat.H_CAPACITY);
+        this.written = header.getLong(TraceFormat.H_WRITTEN);
+        this.originEpochMs = header.getLong(TraceFormat.H_ORIGIN_EPOCH_MS);
+    }
+
+    // Number of records still in the ring
+    public long getRecordCount() {
+        return Math.min(written, capacity);
+    }
+
+    public void forEach(Visitor visitor) throws IOException {
+        long count = getRecordCount();
+        long first = written > capacity ? written % capacity : 0; // Oldest surviving slot
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_RECORDS * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        long done = 0;
+        while (done < count) {
+            long slot = (first + done) % capacity;
+            int n = (int) Math.min(CHUNK_RECORDS, Math.min(count - done, capacity - slot)); // Don't read across the wrap
+            buffer.clear().limit(n * recordSize);
+            readFully(buffer, TraceFormat.HEADER_SIZE + slot * recordSize);
+            for (int i = 0; i < n; i++) {
+                int pos = i * recordSize;
+                visitor.record(
+                    buffer.getInt(pos + TraceFormat.R_FUNC_ID),
+                    buffer.getShort(pos + TraceFormat.R_THREAD),
+                    buffer.getShort(pos + TraceFormat.R_KIND),
+                    buffer.getLong(pos + TraceFormat.R_START),
+                    buffer.getLong(pos + TraceFormat.R_DURATION),
+                    buffer.getLong(pos + TraceFormat.R_SELF),
+                    hasWeights ? Math.max(1, buffer.getInt(pos + TraceFormat.R_WEIGHT)) : 1);
+            }
+            done += n;
+        }
+    }
+
+    // String table next to the trace, or an empty map if it's missing (e.g. the game crashed)
+    public Map<Integer, FileInfo> readNames() throws IOException {
+        Map<Integer, FileInfo> names = new HashMap<>();
+        String path = file.getPath();
+        if (!path.endsWith(TraceFormat.DATA_SUFFIX)) {
+            return names;
+        }
+        File namesFile = new File(path.substring(0, path.length() - TraceFormat.DATA_SUFFIX.length()) + TraceFormat.NAMES_SUFFIX);
+        if (!namesFile.isFile()) {
+            return names;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(namesFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length < 4) {
+                    continue;
+                }
+                try {
+                    FilePrefix prefix;
+                    try {
+                        prefix = FilePrefix.valueOf(parts[1]);
+                    } catch (IllegalArgumentException e) {
+                        prefix = FilePrefix.UNK;
+                    }
+                    names.put(Integer.parseInt(parts[0]), new FileInfo(prefix, parts[2], Integer.parseInt(parts[3])));
+                } catch (NumberFormatException e) {
+                    // Skip malformed line
+                }
+            }
+        }
+        return names;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of trace file: " + file);
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,227 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zombie.ZomboidFileSystem;
+
+// Records every timed Lua call (and frame boundaries) into a memory-mapped ring file
+// Records are written with absolute puts straight into the MappedByteBuffer: no allocation,
+// no locking, just a slot claimed from an AtomicLong. See TraceFormat for the layout.
+// The header's record count is a best-effort progress marker while recording (so a trace
+// cut short by a crash is still readable): it's only moved forward, every PROGRESS_INTERVAL
+// records and once per frame, and stop() replaces it with the exact count.
+// The id -> "file:line" string table is written next to it when recording stops.
+public class TraceRecorder {
+    private static final String FILE_PREFIX = "ZBLuaPerfMon_trace_";
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+
+    public static int sizeMB = 256; // Ring file size; 256MB holds ~6.7M records
+    private static final long PROGRESS_INTERVAL = 4096; // Records between progress marker updates; power of two
+
+    private static volatile Trace active = null;
+    private static volatile File lastFile = null; // Active or most recently stopped trace
+    private static boolean shutdownHookAdded = false;
+
+    private static class Trace {
+        final File file;
+        final MappedByteBuffer buffer;
+        final long capacity;
+        final long originNanos;
+        final AtomicLong written = new AtomicLong();
+        long lastFrameNanos;
+        private long published = 0; // Count last stored in the header, guarded by this
+        private boolean stopped = false; // Guarded by this; the header then holds the exact count
+
+        Trace(File file, MappedByteBuffer buffer, long capacity, long originNanos) {
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.originNanos = originNanos;
+            this.lastFrameNanos = originNanos;
+        }
+
+        void write(int funcId, int thread, short kind, long startNanos, long durationNanos, long selfNanos, int weight) {
+            long slot = written.getAndIncrement();
+            int pos = TraceFormat.HEADER_SIZE + (int) (slot % capacity) * TraceFormat.RECORD_SIZE;
+            MappedByteBuffer b = buffer;
+            b.putInt(pos + TraceFormat.R_FUNC_ID, funcId);
+            b.putShort(pos + TraceFormat.R_THREAD, (short) thread);
+            b.putShort(pos + TraceFormat.R_KIND, kind);
+            b.putLong(pos + TraceFormat.R_START, startNanos - originNanos);
+            b.putLong(pos + TraceFormat.R_DURATION, durationNanos);
+            b.putLong(pos + TraceFormat.R_SELF, selfNanos);
+            b.putInt(pos + TraceFormat.R_WEIGHT, weight);
+            if (((slot + 1) & (PROGRESS_INTERVAL - 1)) == 0) {
+                publishProgress();
+            }
+        }
+
+        // Move the header's record count forward to the slots claimed so far; a lock rather than a
+        // CAS, since the header store itself has to be ordered with other threads' stores
+        synchronized void publishProgress() {
+            long count = written.get();
+            if (!stopped && count > published) {
+                buffer.putLong(TraceFormat.H_WRITTEN, count);
+                published = count;
+            }
+        }
+
+        synchronized long finish() {
+            stopped = true;
+            long count = written.get();
+            buffer.putLong(TraceFormat.H_WRITTEN, count);
+            return count;
+        }
+    }
+
+    public static boolean isRecording() {
+        return active != null;
+    }
+
+    // Start a new trace in the cache dir; returns the .bin path, or null on failure
+    public static synchronized String start() {
+        if (active != null) {
+            return active.file.getAbsolutePath();
+        }
+        if (ZomboidFileSystem.instance == null) {
+            return null;
+        }
+        long capacity = Math.max(1, ((long) Math.max(1, Math.min(sizeMB, 1024)) * 1024 * 1024 - TraceFormat.HEADER_SIZE) / TraceFormat.RECORD_SIZE);
+        long fileSize = TraceFormat.HEADER_SIZE + capacity * TraceFormat.RECORD_SIZE;
+
+        String cacheDir = ZomboidFileSystem.instance.getCacheDir();
+        File file = new File(cacheDir, FILE_PREFIX + LocalDateTime.now().format(FILE_TIMESTAMP) + TraceFormat.DATA_SUFFIX);
+        file.getParentFile().mkdirs();
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(fileSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize); // Mapping outlives the channel
+        } catch (IOException e) {
+            System.err.println("[ZBLuaPerfMon] Failed to start trace: " + e.getMessage());
+            return null;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        long originNanos = System.nanoTime();
+        buffer.putInt(TraceFormat.H_MAGIC, TraceFormat.MAGIC);
+        buffer.putInt(TraceFormat.H_VERSION, TraceFormat.VERSION);
+        buffer.putInt(TraceFormat.H_RECORD_SIZE, TraceFormat.RECORD_SIZE);
+        buffer.putLong(TraceFormat.H_CAPACITY, capacity);
+        buffer.putLong(TraceFormat.H_WRITTEN, 0);
+        buffer.putLong(TraceFormat.H_ORIGIN_NANOS, originNanos);
+        buffer.putLong(TraceFormat.H_ORIGIN_EPOCH_MS, System.currentTimeMillis());
+
+        if (!shutdownHookAdded) {
+            shutdownHookAdded = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(TraceRecorder::stop, "ZBLuaPerfMon-trace-shutdown"));
+        }
+        active = new Trace(file, buffer, capacity, originNanos);
+        lastFile = file;
+        System.out.println("[ZBLuaPerfMon] Trace recording started: " + file.getAbsolutePath());
+        return file.getAbsolutePath();
+    }
+
+    // Finish the current trace: final record count, flush to disk, write the string table
+    // Returns the .bin path, or null if nothing was recording
+    public static synchronized String stop() {
+        Trace trace = active;
+        if (trace == null) {
+            return null;
+        }
+        active = null;
+        long written = trace.finish();
+        trace.buffer.force();
+        writeNames(trace.file);
+        System.out.println("[ZBLuaPerfMon] Trace recording stopped: " + written + " records in " + trace.file.getAbsolutePath());
+        return trace.file.getAbsolutePath();
+    }
+
+    // Export the last `seconds` of the active (or last) trace as Chrome trace-event JSON
+    // next to it. The conversion runs on a background thread; returns the .json path it
+    // will write, or null if there's no trace yet
+    public static String exportChrome(int seconds) {
+        File traceFile = lastFile;
+        if (traceFile == null) {
+            return null;
+        }
+        String path = traceFile.getPath();
+        File outFile = new File(path.substring(0, path.length() - TraceFormat.DATA_SUFFIX.length())
+            + "_" + LocalDateTime.now().format(FILE_TIMESTAMP) + ".json");
+        long windowNs = Math.max(1, seconds) * 1_000_000_000L;
+
+        Thread thread = new Thread(() -> {
+            // The active trace is read through the page cache while it's still being written;
+            // a few records at the very end may be torn, which is fine for a timeline
+            try (TraceReader reader = new TraceReader(traceFile)) {
+                // A stopped trace has its own string table (its ids may have been reused since
+                // a reset); only the active one, which has none yet, is named from the live registry
+                Map<Integer, FileInfo> names = reader.readNames();
+                long endNs = ChromeTraceWriter.findEndNanos(reader);
+                long events = ChromeTraceWriter.write(reader, outFile, endNs - windowNs, Long.MAX_VALUE, funcId -> {
+                    FileInfo info = names.get(funcId);
+                    return info != null ? PerformanceMonitor.getDisplayName(info) : PerformanceMonitor.getDisplayName(funcId);
+                });
+                System.out.println("[ZBLuaPerfMon] Chrome trace written (" + events + " events): " + outFile.getAbsolutePath());
+            } catch (IOException e) {
+                System.err.println("[ZBLuaPerfMon] Failed to export Chrome trace: " + e.getMessage());
+            }
+        }, "ZBLuaPerfMon-chrome-export");
+        thread.setDaemon(true);
+        thread.start();
+        return outFile.getAbsolutePath();
+    }
+
+    // weight: calls the record stands for (the sampling rate, 1 when every call is recorded)
+    public static void recordCall(int funcId, int thread, long startNanos, long durationNanos, long selfNanos, int weight) {
+        Trace trace = active;
+        if (trace != null) {
+            trace.write(funcId, thread, TraceFormat.KIND_CALL, startNanos, durationNanos, selfNanos, weight);
+        }
+    }
+
+    // Called once per frame from the render thread
+    public static void recordFrame(int thread) {
+        Trace trace = active;
+        if (trace != null) {
+            long now = System.nanoTime();
+            long start = trace.lastFrameNanos;
+            trace.lastFrameNanos = now;
+            trace.write(0, thread, TraceFormat.KIND_FRAME, start, now - start, 0, 1);
+            trace.publishProgress();
+        }
+    }
+
+    // FunctionRegistry ids are stable until PerformanceMonitor.reset(), which stops any trace first,
+    // so every funcId in the trace is still registered here
+    private static void writeNames(File dataFile) {
+        String path = dataFile.getPath();
+        File namesFile = new File(path.substring(0, path.length() - TraceFormat.DATA_SUFFIX.length()) + TraceFormat.NAMES_SUFFIX);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(namesFile, false))) {
+            int count = FunctionRegistry.getCount();
+            for (int key = 0; key < count; key++) {
+                FileInfo info = PerformanceMonitor.getFileInfo(key);
+                writer.write(Integer.toString(key));
+                writer.write('\t');
+                writer.write(info.prefix.name());
+                writer.write('\t');
+                writer.write(info.relativePath.replace('\t', ' '));
+                writer.write('\t');
+                writer.write(Integer.toString(info.line));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.err.println("[ZBLuaPerfMon] Failed to write trace names: " + e.getMessage());
+        }
+    }
+}
@@ -12,6 +12,10 @@ public class ZBLuaPerfMon {
     public static int osdUpdateIntervalMS = 1_000;
     public static int osdTopN = 10;
     public static double osdMinTimeMS = 0.1; // Minimum time in milliseconds to show in OSD
+    public static boolean osdShowPercentiles = false;
+    public static boolean osdShowFrameStats = true; // "Lua/frame" line under the OSD header
+    public static boolean osdShowSparklines = false;
+    public static int osdSparklineSeconds = 30; // History shown by each row's sparkline
 
     public static void setOSDRenderX(int x) {
         osdX = x;
@@ -45,12 +49,42 @@ public class ZBLuaPerfMon {
         osdMinTimeMS = minTimeMS;
     }
 
+    public static void setOSDShowPercentiles(boolean show) {
+        osdShowPercentiles = show;
+    }
+
+    public static void setOSDShowFrameStats(boolean show) {
+        osdShowFrameStats = show;
+    }
+
+    public static void setOSDShowSparklines(boolean show) {
+        osdShowSparklines = show;
+    }
+
+    // 2..120: longer histories come from 1-second cells, which are kept for 2 minutes
+    public static void setOSDSparklineSeconds(int seconds) {
+        osdSparklineSeconds = Math.max(2, Math.min(seconds, 120));
+    }
+
     public static int logIntervalSeconds     = 5;
     public static long minTimeMicroseconds   = 10; // 10 microseconds = 10,000 nanoseconds
     public static boolean osdEnabled         = true;
     public static boolean osdFrozen          = false;
     public static boolean logWhenOSDOff      = false;
     public static boolean excludeGameEntries = false;
+    public static boolean rankBySelfTime     = false;
+    public static boolean callPathsEnabled   = false;
+    public static GroupBy groupBy            = GroupBy.FUNCTION;
+    public static boolean asyncRecording     = true;
+    public static boolean overheadCompensation = true; // Subtract the calibrated hook cost from recorded times
+    public static int     samplingRate        = 1; // As configured; OverheadGovernor may sample more sparsely
+    public static boolean governorEnabled     = true;
+    public static double  overheadBudgetPercent = 1.0; // Monitor cost, as % of frame time, the governor aims to stay under
+    public static int     chromeExportSeconds = 10;
+    public static boolean hitchCaptureEnabled = false;
+    public static int     hitchThresholdMS    = 50;  // Lua ms in one frame that counts as a hitch
+    public static int     hitchCooldownSeconds = 10; // Minimum time between captures
+    public static boolean hitchFreezeOSD      = false;
 
     public static void setLogIntervalSeconds(int seconds) {
         logIntervalSeconds = seconds;
@@ -63,7 +97,105 @@ public class ZBLuaPerfMon {
 
     public static void setMinTimeMicroseconds(long microseconds) {
         minTimeMicroseconds = microseconds;
-        Patch_LuaCaller.minTimeNS = microseconds * 1000; // Convert to nanoseconds
+        OverheadGovernor.apply(); // Sets Patch_LuaCaller.minTimeNS
+    }
+
+    // Record 1 in N Lua calls (scaled back up when reporting); 1 = record every call
+    public static void setSamplingRate(int rate) {
+        samplingRate = Math.max(1, rate);
+        OverheadGovernor.apply(); // Sets Patch_LuaCaller.samplingRate
+    }
+
+    // Effective rate, which the governor may have raised above the configured one
+    public static int getSamplingRate() {
+        return Patch_LuaCaller.samplingRate;
+    }
+
+    public static void setGovernorEnabled(boolean enabled) {
+        governorEnabled = enabled;
+        OverheadGovernor.reset();
+    }
+
+    public static void setOverheadBudgetPercent(double percent) {
+        overheadBudgetPercent = Math.max(0.1, percent);
+    }
+
+    // "full", "reduced", "sampled", "heavily sampled" or "minimal"
+    public static String getGovernorMode() {
+        return OverheadGovernor.getModeName();
+    }
+
+    public static double getOverheadPercent() {
+        return OverheadGovernor.getOverheadPercent();
+    }
+
+    // Show functions, mods, prefixes or Lua events in the OSD and log; name is a GroupBy constant (case-insensitive)
+    public static void setGroupBy(String name) {
+        try {
+            groupBy = GroupBy.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            System.err.println("[ZBLuaPerfMon] Unknown group-by mode: " + name);
+        }
+    }
+
+    public static String getGroupBy() {
+        return groupBy.name();
+    }
+
+    // Listeners per fire and per-mod self time under a Lua event over the OSD window, e.g.
+    // "OnTick: 12.0 listeners/fire; ModA 12.345ms, ModB 4.567ms"; null if the event hasn't fired
+    public static String getEventBreakdown(String event) {
+        return EventStats.getBreakdown(event, osdWindowMS, 10);
+    }
+
+    public static String cycleGroupBy() {
+        GroupBy[] modes = GroupBy.values();
+        groupBy = modes[(groupBy.ordinal() + 1) % modes.length];
+        return groupBy.name();
+    }
+
+    // Structured stats file next to the console log: "off", "csv" or "jsonl"
+    public static void setLogFileFormat(String format) {
+        try {
+            StatsLogWriter.format = StatsLogWriter.Format.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            System.err.println("[ZBLuaPerfMon] Unknown log file format: " + format);
+        }
+    }
+
+    public static void setLogToConsole(boolean enabled) {
+        StatsLogWriter.logConsole = enabled;
+    }
+
+    public static void setLogFileMaxMB(int maxMB) {
+        StatsLogWriter.maxFileMB = Math.max(1, maxMB);
+    }
+
+    public static void setLogFileMaxMinutes(int minutes) {
+        StatsLogWriter.maxFileMinutes = Math.max(1, minutes);
+    }
+
+    // Hand samples to a background aggregator thread instead of updating stats on the Lua thread
+    public static void setAsyncRecording(boolean enabled) {
+        asyncRecording = enabled;
+        OverheadGovernor.apply(); // The governor only raises minTimeNS in sync mode
+    }
+
+    public static void setOverheadCompensation(boolean enabled) {
+        overheadCompensation = enabled;
+    }
+
+    // Calibrated cost the LuaCaller hooks add per hooked call, in nanoseconds (0 until measured)
+    public static long getHookOverheadNs() {
+        return HookOverhead.getCallNs();
+    }
+
+    public static boolean getAsyncRecording() {
+        return asyncRecording;
+    }
+
+    public static long getDroppedSamples() {
+        return AsyncAggregator.getDroppedSamples();
     }
 
     public static void setOSDEnabled(boolean enabled) {
@@ -93,17 +225,191 @@ public class ZBLuaPerfMon {
     }
 
     public static void setExcludeGameEntries(boolean exclude) {
-        excludeGameEntries = exclude;
-        // Clear excluded keys when setting is turned off, so GAME entries can be tracked again
-        if (!exclude) {
-            PerformanceMonitor.clearExcludedSlowKeys();
-        }
+        excludeGameEntries = exclude; // Checked per sample, so GAME entries are tracked again as soon as it's off
     }
 
     public static boolean getExcludeGameEntries() {
         return excludeGameEntries;
     }
 
+    public static void setRankBySelfTime(boolean bySelfTime) {
+        rankBySelfTime = bySelfTime;
+    }
+
+    public static boolean getRankBySelfTime() {
+        return rankBySelfTime;
+    }
+
+    public static boolean toggleRankBySelfTime() {
+        rankBySelfTime = !rankBySelfTime;
+        return rankBySelfTime;
+    }
+
+    public static void setCallPathsEnabled(boolean enabled) {
+        callPathsEnabled = enabled;
+    }
+
+    public static boolean getCallPathsEnabled() {
+        return callPathsEnabled;
+    }
+
+    // Write recorded call paths as a collapsed-stack (flame graph) file; returns its path or nil
+    public static String dumpCallPaths() {
+        String path = CallPathTree.dumpCollapsed();
+        if (path != null) {
+            System.out.println("[ZBLuaPerfMon] Call paths written to " + path);
+        }
+        return path;
+    }
+
+    public static void clearCallPaths() {
+        CallPathTree.clearAll();
+    }
+
+    // Binary trace recording (see TraceRecorder); start/stop return the trace file path
+    public static String startTraceRecording() {
+        return TraceRecorder.start();
+    }
+
+    public static String stopTraceRecording() {
+        return TraceRecorder.stop();
+    }
+
+    public static boolean isTraceRecording() {
+        return TraceRecorder.isRecording();
+    }
+
+    public static String toggleTraceRecording() {
+        return TraceRecorder.isRecording() ? TraceRecorder.stop() : TraceRecorder.start();
+    }
+
+    // Write the last N seconds of the trace as Chrome trace-event JSON; returns the .json path
+    public static String exportChromeTrace(int seconds) {
+        return TraceRecorder.exportChrome(seconds);
+    }
+
+    public static String exportChromeTrace() {
+        return TraceRecorder.exportChrome(chromeExportSeconds);
+    }
+
+    public static void setChromeExportSeconds(int seconds) {
+        chromeExportSeconds = Math.max(1, seconds);
+    }
+
+    // Hitch capture (see HitchCapture)
+    public static void setHitchCaptureEnabled(boolean enabled) {
+        hitchCaptureEnabled = enabled;
+    }
+
+    public static void setHitchThresholdMS(int thresholdMS) {
+        hitchThresholdMS = Math.max(1, thresholdMS);
+    }
+
+    public static void setHitchCooldownSeconds(int seconds) {
+        hitchCooldownSeconds = Math.max(0, seconds);
+    }
+
+    public static void setHitchFreezeOSD(boolean freeze) {
+        hitchFreezeOSD = freeze;
+    }
+
+    public static String getLastHitchFile() {
+        return HitchCapture.getLastFile();
+    }
+
+    // Stats snapshots (see StatsSnapshot), e.g. from the Lua console:
+    //   ZBLuaPerfMon.takeSnapshot("before") ... ZBLuaPerfMon.takeSnapshot("after")
+    //   print(ZBLuaPerfMon.diffSnapshots("before", "after"))
+    public static int snapshotWindowSeconds = 60;
+
+    public static void setSnapshotWindowSeconds(int seconds) {
+        snapshotWindowSeconds = Math.max(1, seconds);
+    }
+
+    // Returns the number of functions and mods captured
+    public static int takeSnapshot(String name, int windowSeconds) {
+        StatsSnapshot snapshot = StatsSnapshot.take(name, windowSeconds * 1000L);
+        StatsSnapshot.save(snapshot);
+        System.out.println("[ZBLuaPerfMon] Snapshot \"" + name + "\" taken: " + snapshot.size() + " rows over " + snapshot.coveredMS / 1000 + "s");
+        return snapshot.size();
+    }
+
+    public static int takeSnapshot(String name) {
+        return takeSnapshot(name, snapshotWindowSeconds);
+    }
+
+    // Top changes of each kind as text (also printed to the console), or null if a name is unknown
+    public static String diffSnapshots(String before, String after, int limit) {
+        StatsSnapshot.Diff diff = getSnapshotDiff(before, after);
+        if (diff == null) {
+            return null;
+        }
+        String text = diff.format(limit);
+        System.out.println("[ZBLuaPerfMon] " + text.trim().replace("\n", "\n[ZBLuaPerfMon] "));
+        return text;
+    }
+
+    public static String diffSnapshots(String before, String after) {
+        return diffSnapshots(before, after, 20);
+    }
+
+    // Writes every row of the diff to a file in the cache dir; returns its path, or null
+    public static String writeSnapshotDiff(String before, String after) {
+        StatsSnapshot.Diff diff = getSnapshotDiff(before, after);
+        return diff != null ? diff.write() : null;
+    }
+
+    private static StatsSnapshot.Diff getSnapshotDiff(String before, String after) {
+        StatsSnapshot a = StatsSnapshot.get(before);
+        StatsSnapshot b = StatsSnapshot.get(after);
+        if (a == null || b == null) {
+            System.err.println("[ZBLuaPerfMon] Unknown snapshot: " + (a == null ? before : after));
+            return null;
+        }
+        return StatsSnapshot.diff(a, b);
+    }
+
+    // Writes a snapshot to a file in the cache dir, so it can be loaded in a later session; returns its path, or null
+    public static String writeSnapshot(String name) {
+        StatsSnapshot snapshot = StatsSnapshot.get(name);
+        if (snapshot == null) {
+            System.err.println("[ZBLuaPerfMon] Unknown snapshot: " + name);
+            return null;
+        }
+        String path = snapshot.write();
+        if (path != null) {
+            System.out.println("[ZBLuaPerfMon] Snapshot written to " + path);
+        }
+        return path;
+    }
+
+    // Loads a snapshot file (absolute, or relative to the cache dir) under its saved name; returns the name, or null
+    public static String loadSnapshot(String path) {
+        java.io.File file = new java.io.File(path);
+        if (!file.isAbsolute() && zombie.ZomboidFileSystem.instance != null) {
+            file = new java.io.File(zombie.ZomboidFileSystem.instance.getCacheDir(), path);
+        }
+        StatsSnapshot snapshot = StatsSnapshot.read(file);
+        if (snapshot == null) {
+            return null;
+        }
+        StatsSnapshot.save(snapshot);
+        return snapshot.name;
+    }
+
+    public static boolean deleteSnapshot(String name) {
+        return StatsSnapshot.remove(name);
+    }
+
+    // Comma-separated names of the snapshots in memory, oldest first
+    public static String getSnapshotNames() {
+        return String.join(", ", StatsSnapshot.getNames());
+    }
+
+    public static void setTraceSizeMB(int sizeMB) {
+        TraceRecorder.sizeMB = Math.max(1, Math.min(sizeMB, 1024));
+    }
+
     public static void setTrackInternalPerformance(boolean enabled) {
         PerformanceMonitor.trackInternalPerformance = enabled;
     }
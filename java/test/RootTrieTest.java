@@ -0,0 +1,100 @@
+package me.zed_0xff.zb_lua_perf_mon;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class RootTrieTest {
+    private static final String CACHE = "C:/Users/me/Zomboid";
+    private static final String STEAM = "D:/Steam/steamapps/workshop/content/108600/123";
+    private static final String GAME = "D:/Steam/steamapps/common/ProjectZomboid";
+
+    // The roots PathParser builds, in the same order and priorities
+    private static RootTrie buildTrie() {
+        RootTrie trie = new RootTrie();
+        trie.add(new RootTrie.Root(CACHE + "/mods/", FilePrefix.LMOD, true, 0));
+        trie.add(new RootTrie.Root(CACHE + "/workshop/", FilePrefix.WMOD, false, 1));
+        trie.add(new RootTrie.Root(STEAM, FilePrefix.SMOD, true, 2));
+        trie.add(new RootTrie.Root(GAME, FilePrefix.GAME, true, 3));
+        return trie;
+    }
+
+    @Test
+    public void noMatch() {
+        RootTrie trie = buildTrie();
+        assertNull(trie.match("E:/elsewhere/foo.lua"));
+        assertNull(trie.match(""));
+        assertNull(trie.match(CACHE + "/mod")); // Shorter than any root
+    }
+
+    @Test
+    public void lowestPriorityValueWins() {
+        RootTrie trie = new RootTrie();
+        RootTrie.Root outer = new RootTrie.Root("/a/", FilePrefix.GAME, true, 3);
+        RootTrie.Root inner = new RootTrie.Root("/a/b/", FilePrefix.LMOD, true, 0);
+        trie.add(outer);
+        trie.add(inner);
+        assertSame(inner, trie.match("/a/b/c.lua"));
+        assertSame(outer, trie.match("/a/c.lua"));
+
+        // Same path, added in either order
+        RootTrie.Root low = new RootTrie.Root("/x/", FilePrefix.WMOD, false, 1);
+        RootTrie.Root high = new RootTrie.Root("/x/", FilePrefix.SMOD, true, 2);
+        trie.add(high);
+        trie.add(low);
+        assertSame(low, trie.match("/x/y.lua"));
+    }
+
+    @Test
+    public void caseSensitivity() {
+        RootTrie trie = buildTrie();
+        assertEquals(FilePrefix.LMOD, trie.match(CACHE + "/mods/Foo/media/lua/client/a.lua").prefix);
+        assertNull(trie.match(CACHE.toLowerCase() + "/MODS/Foo/a.lua"));
+        assertEquals(FilePrefix.WMOD, trie.match(CACHE + "/workshop/Foo/a.lua").prefix);
+        assertEquals(FilePrefix.WMOD, trie.match(CACHE.toUpperCase() + "/WORKSHOP/Foo/a.lua").prefix);
+    }
+
+    @Test
+    public void backslashes() {
+        RootTrie trie = buildTrie();
+        String fname = (CACHE + "/mods/Foo/media/lua/client/a.lua").replace('/', '\\');
+        RootTrie.Root root = trie.match(fname);
+        assertEquals(FilePrefix.LMOD, root.prefix);
+        assertEquals("Foo/media/lua/client/a.lua", root.relativePath(fname));
+
+        fname = (STEAM + "/mods/Foo/lua/shared/b.lua").replace('/', '\\');
+        root = trie.match(fname);
+        assertEquals(FilePrefix.SMOD, root.prefix);
+        assertEquals("Foo/lua/shared/b.lua", root.relativePath(fname));
+    }
+
+    @Test
+    public void relativePaths() {
+        RootTrie trie = buildTrie();
+        String fname = CACHE + "/workshop/Foo/Contents/a.lua";
+        assertEquals("Foo/Contents/a.lua", trie.match(fname).relativePath(fname));
+
+        fname = STEAM + "/mods/Foo/media/lua/client/a.lua";
+        assertEquals("Foo/media/lua/client/a.lua", trie.match(fname).relativePath(fname));
+
+        fname = GAME + "/media/lua/client/ISUI/ISButton.lua";
+        RootTrie.Root root = trie.match(fname);
+        assertEquals(FilePrefix.GAME, root.prefix);
+        assertEquals("client/ISUI/ISButton.lua", root.relativePath(fname));
+
+        fname = GAME + "/other/x.lua";
+        assertEquals("other/x.lua", trie.match(fname).relativePath(fname));
+    }
+
+    @Test
+    public void stripSteamModPrefixes() {
+        assertEquals("Foo/a.lua", RootTrie.stripSteamModPrefixes("/mods/Foo/a.lua"));
+        assertEquals("Foo/a.lua", RootTrie.stripSteamModPrefixes("mods/Foo/a.lua"));
+        assertEquals("shared/a.lua", RootTrie.stripSteamModPrefixes("/lua/shared/a.lua"));
+        assertEquals("shared/a.lua", RootTrie.stripSteamModPrefixes("mods/lua/shared/a.lua"));
+        assertEquals("Foo/mods/a.lua", RootTrie.stripSteamModPrefixes("Foo/mods/a.lua"));
+        assertEquals("", RootTrie.stripSteamModPrefixes(""));
+    }
+}